@@ -0,0 +1,5 @@
+#!/usr/bin/sh
+
+# Run the JMH benchmarks of the userspace code, requires building with -Pbenchmarks, e.g.
+# ./benchmarks.sh ScoredProcesses -p processes=10000
+java -cp target/sound-of-scheduling-0.1-SNAPSHOT-jar-with-dependencies.jar me.bechberger.sos.benchmarks.Benchmarks "$@"
@@ -0,0 +1,36 @@
+package me.bechberger.sos.benchmarks;
+
+import me.bechberger.sos.util.ProcessSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updating the {@link ProcessSet}, which lists the processes of the system, so the results depend on the system
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessSetBenchmark {
+
+    /** Filter word, empty for no filter */
+    @Param({"", "java", "systemd"})
+    String filterWord;
+
+    private ProcessSet processSet;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        processSet = new ProcessSet(filterWord.isEmpty() ? List.of() : List.of(filterWord));
+    }
+
+    @Benchmark
+    public ProcessSet update() {
+        processSet.update();
+        return processSet;
+    }
+}
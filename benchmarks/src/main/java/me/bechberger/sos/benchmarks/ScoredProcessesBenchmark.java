@@ -0,0 +1,76 @@
+package me.bechberger.sos.benchmarks;
+
+import me.bechberger.sos.ScoredProcesses;
+import me.bechberger.sos.music.Scale;
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+import me.bechberger.sos.util.ProcessSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updating the {@link ScoredProcesses} with a snapshot of the task stats and computing the rankings,
+ * as done in every iteration
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoredProcessesBenchmark {
+
+    /** Number of distinct snapshots, they are reused round-robin */
+    private static final int SNAPSHOTS = 16;
+    private static final long INTERVAL_NS = 250_000_000L;
+
+    @Param({"100", "1000", "10000", "100000"})
+    int processes;
+
+    @Param({"10", "100"})
+    int windowSize;
+
+    private List<Map<Integer, TaskStat>> snapshots;
+    private ScoredProcesses scoredProcesses;
+    private ProcessSet filter;
+    private int tick = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        snapshots = SyntheticTaskStats.generate(processes, SNAPSHOTS, INTERVAL_NS, 42);
+        // the synthetic processes don't exist
+        scoredProcesses = new ScoredProcesses(windowSize, pid -> true);
+        filter = new ProcessSet(List.of());
+        // fill the sliding windows
+        for (int i = 0; i <= windowSize; i++) {
+            update();
+        }
+    }
+
+    @Benchmark
+    public ScoredProcesses update() {
+        scoredProcesses.update(snapshots.get(tick++ % SNAPSHOTS).entrySet(), filter);
+        return scoredProcesses;
+    }
+
+    @Benchmark
+    public List<Integer> mostRunProcesses() {
+        return scoredProcesses.getMostRunProcessesSortedDescendingly(Scale.HARMONIC_MAJOR.length());
+    }
+
+    @Benchmark
+    public List<Integer> mostDispatchedProcesses() {
+        return scoredProcesses.getMostDispatchedProcessesSortedDescendingly(Scale.HARMONIC_MAJOR.length());
+    }
+
+    /** Everything that an iteration does with the scored processes */
+    @Benchmark
+    public void tick(Blackhole blackhole) {
+        blackhole.consume(update());
+        blackhole.consume(mostRunProcesses());
+        blackhole.consume(mostDispatchedProcesses());
+    }
+}
@@ -0,0 +1,55 @@
+package me.bechberger.sos.benchmarks;
+
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic snapshots of the task stats map, as read in consecutive iterations
+ */
+public class SyntheticTaskStats {
+
+    /** Pid of the first synthetic process */
+    public static final int FIRST_PID = 1000;
+
+    /**
+     * Generate snapshots with cumulative runtimes and dispatches
+     * <p>
+     * Every snapshot contains new {@link TaskStat} objects, like every read of the BPF map.
+     * Around a third of the processes is idle in each tick.
+     *
+     * @param processes  number of processes per snapshot
+     * @param ticks      number of snapshots
+     * @param intervalNs maximum runtime of a process per tick
+     */
+    public static List<Map<Integer, TaskStat>> generate(int processes, int ticks, long intervalNs, long seed) {
+        Random random = new Random(seed);
+        long[] runtimes = new long[processes];
+        long[] dispatches = new long[processes];
+        String[] comms = new String[processes];
+        for (int i = 0; i < processes; i++) {
+            comms[i] = "task-" + i;
+        }
+        List<Map<Integer, TaskStat>> snapshots = new ArrayList<>(ticks);
+        for (int tick = 0; tick < ticks; tick++) {
+            Map<Integer, TaskStat> snapshot = new HashMap<>(processes * 2);
+            for (int i = 0; i < processes; i++) {
+                if (random.nextInt(3) != 0) {
+                    runtimes[i] += 1 + random.nextLong(intervalNs);
+                    dispatches[i] += 1 + random.nextInt(100);
+                }
+                var stat = new TaskStat();
+                stat.comm = comms[i];
+                stat.runtimeNs = runtimes[i];
+                stat.dispatches = dispatches[i];
+                snapshot.put(FIRST_PID + i, stat);
+            }
+            snapshots.add(snapshot);
+        }
+        return snapshots;
+    }
+}
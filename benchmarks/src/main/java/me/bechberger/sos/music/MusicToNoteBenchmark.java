@@ -0,0 +1,76 @@
+package me.bechberger.sos.music;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assigning notes to the top processes, as done twice in every iteration
+ * <p>
+ * The rankings are drawn from a pool of ten times as many processes and a part of them changes every tick.
+ * Rankings that are longer than the scale only assign notes to their first new processes.
+ * In the same package as {@link MusicPlayer.MusicToNote}, as it is package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MusicToNoteBenchmark {
+
+    private static final int RANKINGS = 64;
+    /** Size of the pool of processes relative to the ranked processes */
+    private static final int POOL_FACTOR = 10;
+
+    /** Length of the rankings */
+    @Param({"5", "100", "10000"})
+    int rankedProcesses;
+
+    @Param({"MINOR_PENTATONIC", "HARMONIC_MAJOR"})
+    Scale scale;
+
+    /** Share of the ranked processes that is replaced every tick */
+    @Param({"0.1", "0.5"})
+    double churn;
+
+    private List<List<Integer>> rankings;
+    private MusicPlayer.MusicToNote musicToNote;
+    private int tick = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        int pool = POOL_FACTOR * rankedProcesses;
+        rankings = new ArrayList<>(RANKINGS);
+        List<Integer> ranking = new ArrayList<>();
+        Set<Integer> ranked = new HashSet<>();
+        while (ranking.size() < rankedProcesses) {
+            int pid = random.nextInt(pool);
+            if (ranked.add(pid)) {
+                ranking.add(pid);
+            }
+        }
+        for (int i = 0; i < RANKINGS; i++) {
+            ranking = new ArrayList<>(ranking);
+            for (int j = 0; j < rankedProcesses * churn; j++) {
+                int pid = random.nextInt(pool);
+                if (ranked.add(pid)) {
+                    ranked.remove(ranking.set(random.nextInt(rankedProcesses), pid));
+                }
+            }
+            rankings.add(List.copyOf(ranking));
+        }
+        musicToNote = new MusicPlayer.MusicToNote(scale);
+    }
+
+    @Benchmark
+    public Object update() {
+        return musicToNote.update(rankings.get(tick++ % RANKINGS));
+    }
+}
@@ -0,0 +1,5 @@
+#!/usr/bin/sh
+
+# Render a recording without root, sched-ext or a sound server, e.g.
+# ./render.sh --replay session.sos --render-midi session.mid --render-wav session.wav
+java --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED -cp target/sound-of-scheduling-0.1-SNAPSHOT-jar-with-dependencies.jar me.bechberger.sos.Main "$@"
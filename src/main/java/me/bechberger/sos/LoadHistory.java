@@ -0,0 +1,104 @@
+package me.bechberger.sos;
+
+import me.bechberger.sos.scheduler.BaseScheduler.LoadSample;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time series of the {@link LoadSample}s of the CPUs, keeping the last samples
+ * <p>
+ * The utilization of a CPU in an interval is the share of the busy time in the busy and idle time
+ * between two samples, so the imbalance between the CPUs and the queueing buildup can be followed over time.
+ */
+public class LoadHistory {
+
+    private final int keptSamples;
+    private final ArrayDeque<LoadSample> samples = new ArrayDeque<>();
+
+    /**
+     * @param keptSamples number of kept samples, at least two to compute utilizations
+     */
+    public LoadHistory(int keptSamples) {
+        this.keptSamples = Math.max(2, keptSamples);
+    }
+
+    public void add(LoadSample sample) {
+        samples.addLast(sample);
+        if (samples.size() > keptSamples) {
+            samples.removeFirst();
+        }
+    }
+
+    /** Kept samples, oldest first */
+    public List<LoadSample> getSamples() {
+        return new ArrayList<>(samples);
+    }
+
+    /**
+     * Utilization (0 to 1) of every CPU between the two last samples, empty with less than two samples
+     */
+    public double[] getUtilizations() {
+        if (samples.size() < 2) {
+            return new double[0];
+        }
+        var iterator = samples.descendingIterator();
+        var last = iterator.next();
+        return utilizations(iterator.next(), last);
+    }
+
+    /** Utilization (0 to 1) of every CPU over all kept samples */
+    public double[] getWindowUtilizations() {
+        if (samples.size() < 2) {
+            return new double[0];
+        }
+        return utilizations(samples.getFirst(), samples.getLast());
+    }
+
+    private static double[] utilizations(LoadSample from, LoadSample to) {
+        double[] utilizations = new double[Math.min(from.cpus(), to.cpus())];
+        for (int cpu = 0; cpu < utilizations.length; cpu++) {
+            long busyNs = to.busyNs()[cpu] - from.busyNs()[cpu];
+            long idleNs = to.idleNs()[cpu] - from.idleNs()[cpu];
+            utilizations[cpu] = busyNs + idleNs <= 0 ? 0 : (double) busyNs / (busyNs + idleNs);
+        }
+        return utilizations;
+    }
+
+    /** Difference between the most and the least utilized CPU between the two last samples */
+    public double getImbalance() {
+        double[] utilizations = getUtilizations();
+        if (utilizations.length == 0) {
+            return 0;
+        }
+        double min = 1;
+        double max = 0;
+        for (double utilization : utilizations) {
+            min = Math.min(min, utilization);
+            max = Math.max(max, utilization);
+        }
+        return max - min;
+    }
+
+    /** Average number of tasks in the shared queue over the kept samples */
+    public double getAverageSharedQueued() {
+        return samples.stream().mapToLong(LoadSample::sharedQueued).average().orElse(0);
+    }
+
+    /** Largest number of tasks in the queue of a single CPU in the last sample */
+    public long getMaxLocalQueued() {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        long max = 0;
+        for (long queued : samples.getLast().localQueued()) {
+            max = Math.max(max, queued);
+        }
+        return max;
+    }
+
+    public LoadSample getLast() {
+        return samples.peekLast();
+    }
+}
@@ -1,23 +1,51 @@
 package me.bechberger.sos;
 
 import me.bechberger.ebpf.bpf.BPFProgram;
-import me.bechberger.ebpf.bpf.Scheduler;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
 import me.bechberger.ebpf.runtime.runtime;
 import me.bechberger.sos.music.Instrument;
 import me.bechberger.sos.music.MusicPlayer;
+import me.bechberger.sos.music.NoteOutput;
 import me.bechberger.sos.music.Scale;
+import me.bechberger.sos.music.SequenceOutput;
+import me.bechberger.sos.music.SynthesizerOutput;
+import me.bechberger.sos.music.WavetableSynthesizer;
 import me.bechberger.sos.scheduler.BaseScheduler;
+import me.bechberger.sos.scheduler.CgroupScheduler;
+import me.bechberger.sos.scheduler.EDFScheduler;
 import me.bechberger.sos.scheduler.FIFOScheduler;
 import me.bechberger.sos.scheduler.LotteryScheduler;
+import me.bechberger.sos.scheduler.ManagedScheduler;
+import me.bechberger.sos.scheduler.SimulatedScheduler;
+import me.bechberger.sos.scheduler.TaskStatsSnapshot;
+import me.bechberger.sos.scheduler.UserspaceScheduler;
 import me.bechberger.sos.scheduler.VTimeScheduler;
+import me.bechberger.sos.trace.SliceTracer;
+import me.bechberger.sos.trace.TraceReader;
+import me.bechberger.sos.trace.TraceRecorder;
+import me.bechberger.sos.util.CgroupNames;
 import me.bechberger.sos.util.DurationConverter;
+import me.bechberger.sos.util.Log;
 import me.bechberger.sos.util.ProcessSet;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
+import javax.sound.sampled.LineUnavailableException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -30,16 +58,48 @@ import static picocli.CommandLine.Option;
         description = "Linux scheduler that logs task stats and produces sound")
 public class Main implements Runnable{
 
-    enum SchedulerType {
+    public enum SchedulerType {
         FIFO(FIFOScheduler.class),
         LOTTERY(LotteryScheduler.class),
-        VTIME(VTimeScheduler.class);
+        VTIME(VTimeScheduler.class),
+        CGROUP(CgroupScheduler.class),
+        /** Runs the processes with a latency budget (--deadline) by their earliest deadline, the others by vtime */
+        EDF(EDFScheduler.class),
+        /** Orders the tasks by the decisions of a policy in Java, which decides in batches */
+        USERSPACE(UserspaceScheduler.class),
+        /** Doesn't schedule, but simulates the task stats of a workload, runs without sched-ext */
+        SIMULATED(SimulatedScheduler.class);
 
-        final Class<? extends BaseScheduler> schedulerClass;
+        final Class<? extends ManagedScheduler> schedulerClass;
 
-        SchedulerType(Class<? extends BaseScheduler> schedulerClass) {
+        SchedulerType(Class<? extends ManagedScheduler> schedulerClass) {
             this.schedulerClass = schedulerClass;
         }
+
+        /** Does this type load a BPF scheduler? */
+        public boolean isBPF() {
+            return this != SIMULATED;
+        }
+
+        /**
+         * Load the scheduler of this type, it still has to be attached
+         *
+         * @param simulatedWorkload workload of the {@link #SIMULATED} scheduler, ignored by the BPF schedulers
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public ManagedScheduler load(SimulatedScheduler.Workload simulatedWorkload) {
+            if (!isBPF()) {
+                return new SimulatedScheduler(simulatedWorkload);
+            }
+            return (ManagedScheduler) BPFProgram.load((Class<BPFProgram>) (Class) schedulerClass);
+        }
+    }
+
+    enum SynthesizerType {
+        /** Default synthesizer of the MidiSystem */
+        MIDI,
+        /** Built-in wavetable synthesizer with lower latency */
+        WAVETABLE
     }
 
     @Option(names = {"-c", "--cores"}, defaultValue = "-1",
@@ -51,9 +111,18 @@ public class Main implements Runnable{
     int sliceNs;
 
     @Option(names = {"-a", "--scale-slice"}, defaultValue = "false",
-            description = "Scale slice length based on number of tasks")
+            description = "Scale slice length based on number of tasks and their weight, the slice is then the target latency")
     boolean scaleSlice;
 
+    @Option(names = "--min-slice", defaultValue = "500us",
+            description = "Minimum time slice duration when scaling the slice length", converter = DurationConverter.class)
+    int minSliceNs;
+
+    @Option(names = "--starvation-threshold", defaultValue = "100ms",
+            description = "Tasks that wait longer are preferred by the FIFO and LOTTERY scheduler, 0s to disable",
+            converter = DurationConverter.class)
+    int starvationThresholdNs;
+
     @Option(names = {"-t", "--type"}, defaultValue = "FIFO",
             description = "Scheduler type, one of: ${COMPLETION-CANDIDATES}")
     SchedulerType type;
@@ -62,6 +131,123 @@ public class Main implements Runnable{
             "processes are also included if their parent process matches")
     List<String> filterWords = new ArrayList<>();
 
+    @Option(names = {"-b", "--boost"}, defaultValue = "false",
+            description = "Prefer the filtered processes when scheduling")
+    boolean boost;
+
+    @Option(names = "--boost-share", defaultValue = "50",
+            description = "Maximum share of CPU time in percent that the boosted processes get before the others")
+    int boostShare;
+
+    @Option(names = "--deadline", split = ",",
+            description = "Latency budgets for the EDF scheduler: the tasks of the processes whose names contain " +
+                    "the word (or whose parent process matches) have to run within the budget after waking up, " +
+                    "e.g. firefox=5ms,java=10ms")
+    Map<String, String> deadlineBudgets = new LinkedHashMap<>();
+
+    @Option(names = "--deadline-share", defaultValue = "90",
+            description = "Maximum share of CPU time in percent that the processes with a latency budget get " +
+                    "before the others, beyond it they are throttled to best-effort")
+    int deadlineShare;
+
+    @Option(names = "--policy-cpu", defaultValue = "-1",
+            description = "CPU that the policy thread of the USERSPACE scheduler is pinned to, -1 for the last CPU")
+    int policyCpu;
+
+    @Option(names = "--verbose", defaultValue = "false",
+            description = "Prints more information, e.g. the enabled notes, rate-limited to " +
+                    Log.VERBOSE_PER_SECOND + " lines per second")
+    boolean verbose;
+
+    @Option(names = "--thread-stats", defaultValue = "false",
+            description = "Keep the stats of every thread of the filtered processes and show the threads " +
+                    "that run the most")
+    boolean threadStats;
+
+    @Option(names = "--threads-of", defaultValue = "-1",
+            description = "Filtered process whose threads are shown with --thread-stats, -1 for the one " +
+                    "that runs the most")
+    int threadsOf;
+
+    @Option(names = "--sim-processes", defaultValue = "1000",
+            description = "Number of processes for the SIMULATED scheduler")
+    int simProcesses;
+
+    @Option(names = "--sim-churn", defaultValue = "0.01",
+            description = "Share of the processes that exit and are replaced per second for the SIMULATED scheduler")
+    double simChurn;
+
+    @Option(names = "--sim-seed", defaultValue = "42", description = "Random seed for the SIMULATED scheduler")
+    long simSeed;
+
+    @Option(names = "--record",
+            description = "Record the task stats of the scored processes to this file (split into numbered files)")
+    Path recordPath;
+
+    @Option(names = "--record-max-files", defaultValue = "0",
+            description = "Maximum number of files of the recording (64MiB each), the oldest are deleted, 0 for no limit")
+    int recordMaxFiles;
+
+    @Option(names = "--replay", description = "Replay a recording instead of scheduling")
+    Path replayPath;
+
+    @Option(names = "--replay-speed", defaultValue = "1",
+            description = "Speed of the replay relative to the recording, 0 for as fast as possible")
+    double replaySpeed;
+
+    @Option(names = "--trace",
+            description = "Write the slices that the tasks ran to this file in the Chrome JSON trace format, " +
+                    "which can be opened in Perfetto")
+    Path tracePath;
+
+    @Option(names = "--trace-sample-rate", defaultValue = "1",
+            description = "Trace every n-th slice on average")
+    int traceSampleRate;
+
+    @Option(names = "--trace-filtered", defaultValue = "false",
+            description = "Only trace the slices of the filtered processes")
+    boolean traceFiltered;
+
+    @Option(names = "--sample-interval", defaultValue = "0s", converter = DurationConverter.LongDurationConverter.class,
+            description = "Interval in which the stats are read from the scheduler, independent of the tempo, " +
+                    "0s for every beat")
+    long sampleIntervalNs;
+
+    @Option(names = "--latency-threshold", defaultValue = "5ms",
+            converter = DurationConverter.LongDurationConverter.class,
+            description = "Wait between being enqueued and running above which the percussion plays a snare drum " +
+                    "(for the --latency-percentile of the waits) and a crash cymbal (for the median), 0s disables it")
+    long latencyThresholdNs;
+
+    @Option(names = "--latency-percentile", defaultValue = "99",
+            description = "Percentile of the waits that is compared to the --latency-threshold")
+    double latencyPercentile;
+
+    @Option(names = "--queue-threshold", defaultValue = "16",
+            description = "Queued tasks (in the global queues and the fullest queue of a CPU) above which the " +
+                    "percussion plays a bass drum, 0 disables it")
+    long queueThreshold;
+
+    @Option(names = "--samples-per-bucket", defaultValue = "1",
+            description = "Number of samples that are aggregated before the music, the output and the recorder get them")
+    int samplesPerBucket;
+
+    @Option(names = "--output-interval", defaultValue = "0s", converter = DurationConverter.LongDurationConverter.class,
+            description = "Interval of the status output, 0s for every beat")
+    long outputIntervalNs;
+
+    @Option(names = "--record-interval", defaultValue = "0s", converter = DurationConverter.LongDurationConverter.class,
+            description = "Interval in which the stats are recorded, 0s for every beat")
+    long recordIntervalNs;
+
+    @Option(names = "--render-midi",
+            description = "Render the replayed recording as fast as possible into this MIDI file instead of playing it")
+    Path renderMidiPath;
+
+    @Option(names = "--render-wav",
+            description = "Render the replayed recording as fast as possible into this WAV file instead of playing it")
+    Path renderWavPath;
+
     @Option(names = "--bpm", defaultValue = "120", description = "Beats (quarter notes) per minute for the sound")
     int bpm;
 
@@ -77,50 +263,586 @@ public class Main implements Runnable{
     @Option(names = "--dispatches-instrument", defaultValue = "ACOUSTIC_GRAND_PIANO", description = "Instrument for the tasks with the most dispatches")
     Instrument dispatchesInstrument;
 
+    @Option(names = "--synthesizer", defaultValue = "MIDI",
+            description = "Synthesizer for playing live, one of: ${COMPLETION-CANDIDATES}")
+    SynthesizerType synthesizer;
+
+    /** Interval of the music, in which the scored processes are updated */
     private long intervalNs() {
         return 60000000000L / bpm / 2;
     }
+
+    /** Interval of the consumer, the music's interval if it isn't set */
+    private long intervalNs(long configuredNs) {
+        return configuredNs > 0 ? configuredNs : intervalNs();
+    }
+
+    /** Next time of an action in the interval, without catching up on missed ones */
+    private static long next(long previousNs, long intervalNs, long now) {
+        long next = previousNs + intervalNs;
+        return next < now ? now + intervalNs : next;
+    }
     private ProcessSet filter;
     private ScoredProcesses scoredProcesses;
+    private ScoredThreads scoredThreads;
+    private LoadHistory loadHistory;
+    /** Filtered processes that are currently mirrored to the scheduler */
+    private Set<Integer> mirroredFilter = Set.of();
+    /** Processes with a latency budget by budget */
+    private Map<Long, ProcessSet> deadlineProcesses = Map.of();
+    /** Latency budgets that are currently mirrored to the scheduler by tgid */
+    private Map<Integer, Long> mirroredBudgets = Map.of();
+    /** Deadline misses of the processes at the previous iteration */
+    private Map<Integer, Long> lastDeadlineMisses = new HashMap<>();
+    /** Runtime of the cgroups at the previous iteration */
+    private Map<Long, Long> lastCgroupRuntimes = new HashMap<>();
+    private final CgroupNames cgroupNames = new CgroupNames();
+    /** Time that the last update of the scored processes and the music took */
+    private long lastIterationNs;
+    /** Scheduler type to switch to, set by the command reader */
+    private final AtomicReference<SchedulerType> requestedType = new AtomicReference<>();
+
+    private boolean isBoosting() {
+        return boost && !filterWords.isEmpty();
+    }
+
+    private boolean isTracingFiltered() {
+        return tracePath != null && traceFiltered && !filterWords.isEmpty();
+    }
 
-    private void init() {
+    private boolean isAccountingThreads() {
+        return threadStats && !filterWords.isEmpty();
+    }
+
+    /** Create the process sets and list their processes, which doesn't need the scheduler */
+    private void initProcessSets() {
         filter = new ProcessSet(this.filterWords);
-        scoredProcesses = new ScoredProcesses(windowSize);
+        filter.update();
+        Map<Long, List<String>> wordsByBudget = new HashMap<>();
+        deadlineBudgets.forEach((word, budget) -> wordsByBudget.computeIfAbsent(
+                (long) new DurationConverter().convert(budget), b -> new ArrayList<>()).add(word));
+        deadlineProcesses = new HashMap<>();
+        wordsByBudget.forEach((budget, words) -> {
+            var processes = new ProcessSet(words);
+            processes.update();
+            deadlineProcesses.put(budget, processes);
+        });
+    }
+
+    private void init(ManagedScheduler scheduler) {
+        if (scheduler instanceof SimulatedScheduler simulated) {
+            // the simulated processes don't exist
+            scoredProcesses = new ScoredProcesses(windowSize, simulated::isAlive);
+        } else {
+            scoredProcesses = new ScoredProcesses(windowSize);
+        }
+        loadHistory = new LoadHistory(windowSize);
+        scoredThreads = new ScoredThreads(windowSize);
+    }
+
+    /** Mirror the latency budgets of the matching processes to the EDF scheduler, the smallest budget wins */
+    private void updateLatencyBudgets(EDFScheduler scheduler) {
+        Map<Integer, Long> current = new HashMap<>();
+        deadlineProcesses.forEach((budget, processes) -> {
+            processes.update();
+            for (int pid : processes.getIds()) {
+                current.merge(pid, budget, Math::min);
+            }
+        });
+        scheduler.updateLatencyBudgets(mirroredBudgets, current);
+        mirroredBudgets = current;
+    }
+
+    /** Update the scored processes with the stats of the bucket and play them */
+    private void iteration(MusicPlayer player, ManagedScheduler scheduler, SampleBucket bucket) {
+        update(scheduler, bucket);
+        player.update();
+        player.updatePercussion(bucket.waitPercentileNs(latencyPercentile), bucket.waitPercentileNs(50),
+                bucket.averageGlobalQueued() + bucket.maxLocalQueued());
     }
 
-    private void iteration(MusicPlayer player, BPFHashMap<Integer, BaseScheduler.TaskStat> stats, boolean firstRound) {
+    /** Update the scored processes with the stats of the bucket */
+    private void update(ManagedScheduler scheduler, SampleBucket bucket) {
         filter.update();
+        if (isBoosting() || isTracingFiltered() || isAccountingThreads()) {
+            var current = filter.getIds();
+            scheduler.updateFilteredProcesses(mirroredFilter, current);
+            mirroredFilter = current;
+        }
+        if (scheduler instanceof EDFScheduler edfScheduler) {
+            updateLatencyBudgets(edfScheduler);
+        }
         // update the scored processes
-        scoredProcesses.update(stats, filter);
-        if (firstRound) {
+        scoredProcesses.update(bucket.taskStats(), filter);
+        if (isAccountingThreads()) {
+            updateScoredThreads(bucket);
+        }
+    }
+
+    /** Rank the threads of the selected process, which only changes when it isn't scored anymore */
+    private void updateScoredThreads(SampleBucket bucket) {
+        if (threadsOf != -1) {
+            scoredThreads.select(threadsOf);
+        } else if (!scoredProcesses.contains(scoredThreads.getSelected())) {
+            var mostRun = scoredProcesses.getMostRunProcessesSortedDescendingly(1);
+            scoredThreads.select(mostRun.isEmpty() ? -1 : mostRun.getFirst());
+        }
+        scoredThreads.update(bucket.threadStats());
+    }
+
+    /** Print the threads of the selected process that run the most in the sliding window */
+    private void printThreadInfo() {
+        var threads = scoredThreads.getMostRunThreadsSortedDescendingly(3);
+        if (threads.isEmpty()) {
             return;
         }
-        player.update();
+        Log.info("  threads of " + scoredProcesses.getComm(scoredThreads.getSelected()) + " " +
+                scoredThreads.getSelected() + ": " + String.join(", ", threads.stream().map(tid -> {
+            var stat = scoredThreads.getCombinedStat(tid);
+            return scoredThreads.getName(tid) + " " + tid + " runtime " + nanoSecondsToString(stat.runtimeNs(), 3) +
+                    ", dispatches " + stat.dispatches();
+        }).toList()));
+    }
+
+    private String longestWaitInfo() {
+        var longestWaiting = scoredProcesses.getLongestWaitingProcessesSortedDescendingly(1);
+        if (longestWaiting.isEmpty()) {
+            return "";
+        }
+        int pid = longestWaiting.getFirst();
+        return ", longest wait " + nanoSecondsToString(scoredProcesses.getMaxWaitNs(pid), 3) +
+                " (" + scoredProcesses.getComm(pid) + " " + pid + ")";
+    }
+
+    /** How the slices of the scored processes ended in the sliding window, to choose the slice length */
+    private String switchInfo() {
+        var stat = scoredProcesses.getCombinedStat();
+        if (stat.switches() == 0) {
+            return "";
+        }
+        return String.format(", involuntary switches %.0f%%, slice exhaustions %.0f%%, slice utilization %.0f%%",
+                100.0 * stat.involuntarySwitches() / stat.switches(), 100.0 * stat.sliceExhaustions() / stat.switches(),
+                100 * stat.sliceUtilization());
+    }
+
+    /** Utilization of the CPUs since the last output and the queue depths over its samples */
+    private String loadInfo(SampleBucket bucket) {
+        double[] utilizations = loadHistory.getUtilizations();
+        if (utilizations.length == 0) {
+            return "";
+        }
+        double min = Arrays.stream(utilizations).min().orElse(0);
+        double max = Arrays.stream(utilizations).max().orElse(0);
+        var last = bucket.load();
+        return String.format(", CPU utilization %.0f%%-%.0f%%, queued %d shared (average %.1f, max %d), " +
+                        "%d boosted, at most %d per CPU", 100 * min, 100 * max, last.sharedQueued(),
+                bucket.averageSharedQueued(), bucket.maxSharedQueued(), last.boostQueued(), bucket.maxLocalQueued()) +
+                (bucket.waits() == 0 ? "" : ", wait p50 " + nanoSecondsToString(bucket.waitPercentileNs(50), 1) +
+                        " p" + new DecimalFormat("0.###").format(latencyPercentile) + " " +
+                        nanoSecondsToString(bucket.waitPercentileNs(latencyPercentile), 1));
+    }
+
+    /** How many enqueues used a decision of the policy of the USERSPACE scheduler and how it batches */
+    private String userspaceInfo(ManagedScheduler base) {
+        if (!(base instanceof UserspaceScheduler scheduler) || scheduler.getPolicyEngine() == null) {
+            return "";
+        }
+        var stat = scheduler.getDecisionStat();
+        var engine = scheduler.getPolicyEngine();
+        long enqueues = stat.decided + stat.fallbacks;
+        return String.format(", decided enqueues %.0f%% (held %d), dropped %d, policy batches %d (at most %d tasks, " +
+                        "%d failed), decision writes %d", enqueues == 0 ? 0 : 100.0 * stat.decided / enqueues,
+                stat.held, stat.droppedTasks, engine.getBatches(), engine.getMaxBatchSize(), engine.getFailedBatches(),
+                engine.getWrites()) +
+                (engine.isPinned() ? "" : ", policy thread not pinned");
+    }
+
+    private String boostInfo() {
+        if (!isBoosting()) {
+            return "";
+        }
+        return ", average wait boosted " + nanoSecondsToString(scoredProcesses.getAverageWaitNs(true), 3) +
+                ", others " + nanoSecondsToString(scoredProcesses.getAverageWaitNs(false), 3);
+    }
+
+    /** Print the cgroups with the most runtime since the last iteration */
+    private void printCgroupInfo(CgroupScheduler scheduler) {
+        Map<Long, Long> runtimes = new HashMap<>();
+        Map<Long, CgroupScheduler.CgroupStat> stats = new HashMap<>();
+        for (var entry : scheduler.getCgroupStats().entrySet()) {
+            runtimes.put(entry.getKey(), entry.getValue().runtimeNs);
+            stats.put(entry.getKey(), entry.getValue());
+        }
+        runtimes.entrySet().stream()
+                .sorted(Comparator.comparingLong(e -> -(e.getValue() - lastCgroupRuntimes.getOrDefault(e.getKey(), 0L))))
+                .limit(3)
+                .forEach(e -> Log.info("  cgroup " + cgroupNames.get(e.getKey()) + ": runtime " +
+                        nanoSecondsToString(e.getValue() - lastCgroupRuntimes.getOrDefault(e.getKey(), 0L), 3) +
+                        ", " + stats.get(e.getKey())));
+        lastCgroupRuntimes = runtimes;
+    }
+
+    /** Print the status line and the scheduler specific details */
+    private void printStatus(ManagedScheduler base, SliceTracer tracer, SampleBucket bucket) {
+        loadHistory.add(bucket.load());
+        Log.info("Iteration took " + nanoSecondsToString(lastIterationNs, 3) + ", samples " +
+                bucket.samples() + ", wasted dispatch scan steps " + base.getWastedScanSteps() + longestWaitInfo() +
+                switchInfo() + loadInfo(bucket) + boostInfo() + userspaceInfo(base) +
+                (tracer == null ? "" : ", traced slices " + tracer.getEvents() + ", dropped " + base.getDroppedSliceEvents()));
+        if (base instanceof CgroupScheduler cgroupScheduler) {
+            printCgroupInfo(cgroupScheduler);
+        }
+        if (base instanceof EDFScheduler edfScheduler) {
+            printDeadlineInfo(edfScheduler);
+        }
+        if (isAccountingThreads()) {
+            printThreadInfo();
+        }
+    }
+
+    /** Print the processes that missed the most deadlines since the last iteration */
+    private void printDeadlineInfo(EDFScheduler scheduler) {
+        Map<Integer, Long> misses = new HashMap<>();
+        Map<Integer, EDFScheduler.DeadlineStat> stats = new HashMap<>();
+        for (var entry : scheduler.getDeadlineStats().entrySet()) {
+            misses.put(entry.getKey(), entry.getValue().misses);
+            stats.put(entry.getKey(), entry.getValue());
+        }
+        misses.entrySet().stream()
+                .filter(e -> e.getValue() > lastDeadlineMisses.getOrDefault(e.getKey(), 0L))
+                .sorted(Comparator.comparingLong(e -> -(e.getValue() - lastDeadlineMisses.getOrDefault(e.getKey(), 0L))))
+                .limit(3)
+                .forEach(e -> {
+                    var stat = stats.get(e.getKey());
+                    Log.info("  process " + e.getKey() + " (budget " + nanoSecondsToString(stat.budgetNs, 1) +
+                            "): " + (e.getValue() - lastDeadlineMisses.getOrDefault(e.getKey(), 0L)) +
+                            " deadline misses, in total " + stat.misses + " of " + stat.deadlineDispatches +
+                            ", max lateness " + nanoSecondsToString(stat.maxLatenessNs, 3) +
+                            ", throttled " + stat.throttles + " times");
+                });
+        lastDeadlineMisses = misses;
+    }
+
+    /** Apply the options that are specific to a scheduler type, before the setting is set */
+    private void configure(ManagedScheduler scheduler) {
+        if (scheduler instanceof UserspaceScheduler userspaceScheduler) {
+            userspaceScheduler.setPolicyCpu(policyCpu);
+        }
+        if (scheduler instanceof EDFScheduler edfScheduler) {
+            // e.g. after switching the scheduler
+            edfScheduler.updateLatencyBudgets(Map.of(), mirroredBudgets);
+            edfScheduler.setDeadlineShare(deadlineShare);
+        }
+    }
+
+    /** Read the commands from the standard input, currently only "switch <type>" */
+    private void startCommandReader() {
+        var thread = new Thread(() -> {
+            try (var reader = new BufferedReader(new InputStreamReader(System.in))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    var parts = line.trim().split("\\s+");
+                    if (parts.length == 2 && parts[0].equals("switch")) {
+                        try {
+                            requestedType.set(SchedulerType.valueOf(parts[1].toUpperCase()));
+                        } catch (IllegalArgumentException e) {
+                            Log.error("Unknown scheduler type " + parts[1]);
+                        }
+                    } else if (!line.isBlank()) {
+                        Log.error("Unknown command \"" + line.trim() + "\", use: switch <type>");
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("Can't read commands: " + e.getMessage());
+            }
+        }, "command-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Switch to a scheduler of another type, keeping the task stats and the state of the scoring and the music
+     * <p>
+     * The new scheduler is loaded and verified before the old one is detached,
+     * so the kernel's scheduler only runs while the attachment is swapped. The stats that changed while the
+     * new scheduler was loaded are imported again right after the old one is closed. If the new scheduler can't be
+     * attached, a scheduler of the previous type is attached again.
+     *
+     * @return the scheduler to use from now on
+     * @throws Exception if the previous type can't be attached again either, {@code current} is closed then too
+     */
+    private ManagedScheduler switchScheduler(ManagedScheduler current, SchedulerType newType) throws Exception {
+        if (newType == type) {
+            Log.info("Already using the " + type + " scheduler");
+            return current;
+        }
+        if (!type.isBPF() || !newType.isBPF()) {
+            Log.error("Can't switch from or to the simulated scheduler");
+            return current;
+        }
+        if (tracePath != null) {
+            Log.error("Can't switch the scheduler while tracing");
+            return current;
+        }
+        long start = System.nanoTime();
+        var imported = TaskStatsSnapshot.of(current);
+        ManagedScheduler next;
+        try {
+            next = prepareScheduler(newType, imported);
+        } catch (Exception e) {
+            Log.error("Can't load the " + newType + " scheduler: " + e.getMessage());
+            return current;
+        }
+        long detachStart = System.nanoTime();
+        // read last thing before closing, the maps of the scheduler are gone afterward
+        var latest = TaskStatsSnapshot.of(current);
+        current.close();
+        try {
+            next.importTaskStats(latest.changedSince(imported));
+            next.attachScheduler();
+        } catch (RuntimeException e) {
+            Log.error("Can't attach the " + newType + " scheduler, going back to the " + type + " scheduler: " +
+                    e.getMessage());
+            next.close();
+            var previous = prepareScheduler(type, latest);
+            boolean attached = false;
+            try {
+                previous.attachScheduler();
+                attached = true;
+            } finally {
+                if (!attached) {
+                    previous.close();
+                }
+            }
+            return previous;
+        }
+        long end = System.nanoTime();
+        Log.info("Switched from " + type + " to " + newType + " in " + nanoSecondsToString(end - start, 3) +
+                ", without a sched-ext scheduler for " + nanoSecondsToString(end - detachStart, 3));
+        type = newType;
+        return next;
+    }
+
+    /** Load and configure a scheduler of the type, with the task stats of another scheduler, but don't attach it */
+    private ManagedScheduler prepareScheduler(SchedulerType schedulerType, TaskStatsSnapshot stats)
+            throws Exception {
+        var scheduler = schedulerType.load(simulatedWorkload());
+        try {
+            configure(scheduler);
+            scheduler.setSetting(createSetting());
+            scheduler.updateFilteredProcesses(Set.of(), mirroredFilter);
+            scheduler.importTaskStats(stats);
+        } catch (Exception e) {
+            scheduler.close();
+            throw e;
+        }
+        return scheduler;
+    }
+
+    private SimulatedScheduler.Workload simulatedWorkload() {
+        return new SimulatedScheduler.Workload(simProcesses, simChurn, simSeed);
+    }
+
+    private ManagedScheduler loadScheduler() {
+        return type.load(simulatedWorkload());
+    }
+
+    private NoteOutput createNoteOutput() throws LineUnavailableException {
+        if (synthesizer == SynthesizerType.WAVETABLE) {
+            // the notes of a channel come from the scale
+            var output = new WavetableSynthesizer(scale.length());
+            output.start();
+            return output;
+        }
+        return new SynthesizerOutput();
+    }
+
+    private MusicPlayer createMusicPlayer() throws LineUnavailableException {
+        return createMusicPlayer(createNoteOutput());
+    }
+
+    private MusicPlayer createMusicPlayer(NoteOutput output) {
+        return new MusicPlayer(scale, runtimeInstrument, dispatchesInstrument, scoredProcesses, intervalNs(),
+                output, true);
+    }
+
+    /** Music player for the live scheduler, which also plays the scheduling pressure */
+    private MusicPlayer createLiveMusicPlayer(NoteOutput output) {
+        var player = createMusicPlayer(output);
+        if (latencyThresholdNs > 0 || queueThreshold > 0) {
+            player.enablePercussion(latencyThresholdNs, queueThreshold);
+        }
+        return player;
+    }
+
+    /** Replay a recording with sound instead of scheduling */
+    private void replay() throws IOException, InterruptedException, LineUnavailableException {
+        var reader = new TraceReader(replayPath);
+        // the recorded processes might not exist anymore
+        scoredProcesses = new ScoredProcesses(windowSize, pid -> true);
+        try (var player = createMusicPlayer()) {
+            Log.info("Replaying " + replayPath);
+            var firstRound = new AtomicBoolean(true);
+            int ticks = reader.replay(scoredProcesses, replaySpeed, tick -> {
+                if (firstRound.getAndSet(false)) {
+                    return;
+                }
+                player.update();
+                Log.info("Replayed " + nanoSecondsToString(tick.timestampNs(), 3) + longestWaitInfo());
+            });
+            Log.info("Replayed " + ticks + " iterations");
+        }
+    }
+
+    /** Render a recording into MIDI and WAV files, without waiting and without a sound device */
+    private void render() throws Exception {
+        var reader = new TraceReader(replayPath);
+        scoredProcesses = new ScoredProcesses(windowSize, pid -> true);
+        var output = new SequenceOutput();
+        long start = System.nanoTime();
+        int ticks;
+        try (var player = new MusicPlayer(scale, runtimeInstrument, dispatchesInstrument, scoredProcesses, intervalNs(),
+                output, false)) {
+            var firstRound = new AtomicBoolean(true);
+            ticks = reader.replay(scoredProcesses, 0, tick -> {
+                output.setTimeNs(tick.timestampNs());
+                if (!firstRound.getAndSet(false)) {
+                    player.update();
+                }
+            });
+            // let the last notes play for an iteration
+            output.setTimeNs(output.getTimeNs() + intervalNs());
+        }
+        if (renderMidiPath != null) {
+            output.writeMidi(renderMidiPath);
+        }
+        if (renderWavPath != null) {
+            output.writeWav(renderWavPath);
+        }
+        Log.info("Rendered " + ticks + " iterations (" + nanoSecondsToString(output.getTimeNs(), 3) + ") in " +
+                nanoSecondsToString(System.nanoTime() - start, 3));
+    }
+
+    BaseScheduler.SchedulerSetting createSetting() {
+        return new BaseScheduler.SchedulerSetting(sliceNs, cores, scaleSlice, minSliceNs, starvationThresholdNs,
+                isBoosting() ? boostShare : 0, tracePath != null ? Math.max(1, traceSampleRate) : 0,
+                isTracingFiltered(), isAccountingThreads());
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
     @Override
     public void run() {
-        System.out.println("Filter for the process tree: " + filterWords);
-        System.out.println("Query interval: " + nanoSecondsToString(intervalNs(), 3));
-
-        try (var program = BPFProgram.load((Class<BPFProgram>) (Class) type.schedulerClass)) {
-            var base = (BaseScheduler) program;
-            base.setSetting(new BaseScheduler.SchedulerSetting(cores, sliceNs, scaleSlice));
-            ((Scheduler)program).attachScheduler();
-            init();
-            try (var player = new MusicPlayer(scale, runtimeInstrument, dispatchesInstrument, scoredProcesses, intervalNs())) {
-                System.out.println("Starting scheduler");
-                boolean firstRound = true;
-                while (((Scheduler) program).isSchedulerAttachedProperly()) {
-                    long start = System.nanoTime();
-                    iteration(player, ((BaseScheduler) program).getTaskStats(), firstRound);
-                    if (firstRound) {
-                        firstRound = false;
+        Log.setVerbose(verbose);
+        if (replayPath == null && (renderMidiPath != null || renderWavPath != null)) {
+            Log.error("Rendering requires a recording to replay");
+            return;
+        }
+        if (tracePath != null && type == SchedulerType.SIMULATED) {
+            Log.error("Tracing requires a BPF scheduler");
+            return;
+        }
+        if (replayPath != null) {
+            try {
+                if (renderMidiPath != null || renderWavPath != null) {
+                    render();
+                } else {
+                    replay();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        Log.info("Filter for the process tree: " + filterWords);
+        Log.info("Beat interval: " + nanoSecondsToString(intervalNs(), 3) + ", sample interval: " +
+                nanoSecondsToString(intervalNs(sampleIntervalNs), 3));
+
+        var startup = new Startup();
+        // opening the synthesizer (with its soundbank) and listing the processes don't need the scheduler
+        var noteOutput = startup.fork("open synthesizer", this::createNoteOutput);
+        var processSets = startup.fork("list processes", () -> {
+            initProcessSets();
+            return null;
+        });
+        ManagedScheduler base;
+        try {
+            base = startup.get("load scheduler", this::loadScheduler);
+        } catch (RuntimeException e) {
+            startup.closeUnjoined();
+            throw e;
+        }
+        try {
+            var scheduler = base;
+            startup.run("attach scheduler", () -> {
+                configure(scheduler);
+                scheduler.setSetting(createSetting());
+                scheduler.attachScheduler();
+            });
+            init(base);
+            startup.join(processSets);
+            // the first sample has nothing to compare to, take it while the synthesizer might still open
+            var sampler = new Sampler(base, samplesPerBucket, isAccountingThreads());
+            var primeCursor = sampler.cursor();
+            startup.run("first sample", () -> {
+                do {
+                    sampler.sample();
+                } while (primeCursor.poll() == null);
+            });
+            long primedAt = System.nanoTime();
+            try (var player = createLiveMusicPlayer(startup.join(noteOutput));
+                 var recorder = recordPath == null ? null :
+                         new TraceRecorder(recordPath, TraceRecorder.DEFAULT_SEGMENT_SIZE, recordMaxFiles);
+                 var tracer = tracePath == null || !(base instanceof BaseScheduler bpf) ? null :
+                         new SliceTracer(bpf.getSliceEvents(), tracePath)) {
+                Log.info(startup.summary());
+                Log.info("Starting scheduler, type \"switch <type>\" to switch the scheduler type");
+                startCommandReader();
+                // the music, the output and the recorder read the samples at their own cadence
+                var musicCursor = sampler.cursor();
+                var outputCursor = sampler.cursor();
+                var recordCursor = sampler.cursor();
+                long nextSample = Math.max(System.nanoTime(), primedAt + intervalNs(sampleIntervalNs));
+                long nextMusic = nextSample;
+                long nextOutput = nextSample;
+                long nextRecord = nextSample;
+                while (base.isSchedulerAttachedProperly()) {
+                    var requestedType = this.requestedType.getAndSet(null);
+                    if (requestedType != null) {
+                        var current = base;
+                        // the switch closes the current scheduler, also if it fails
+                        base = null;
+                        base = switchScheduler(current, requestedType);
+                        sampler.setScheduler(base);
+                    }
+                    long now = System.nanoTime();
+                    if (now >= nextSample) {
+                        sampler.sample();
+                        nextSample = next(nextSample, intervalNs(sampleIntervalNs), now);
+                    }
+                    if (now >= nextMusic) {
+                        var bucket = musicCursor.poll();
+                        if (bucket != null) {
+                            long start = System.nanoTime();
+                            iteration(player, base, bucket);
+                            lastIterationNs = System.nanoTime() - start;
+                        }
+                        nextMusic = next(nextMusic, intervalNs(), now);
                     }
-                    long end = System.nanoTime();
-                    long sleepTime = intervalNs() - (end - start);
-                    System.out.println("Iteration took " + nanoSecondsToString((end - start), 3));
+                    if (recorder != null && now >= nextRecord) {
+                        var bucket = recordCursor.poll();
+                        if (bucket != null) {
+                            recorder.record(bucket.lastSampleNs(), bucket.taskStats(), scoredProcesses::contains);
+                        }
+                        nextRecord = next(nextRecord, intervalNs(recordIntervalNs), now);
+                    }
+                    if (now >= nextOutput) {
+                        var bucket = outputCursor.poll();
+                        if (bucket != null) {
+                            printStatus(base, tracer, bucket);
+                        }
+                        nextOutput = next(nextOutput, intervalNs(outputIntervalNs), now);
+                    }
+                    long sleepTime = Math.min(Math.min(nextSample, nextMusic),
+                            Math.min(nextOutput, recorder == null ? Long.MAX_VALUE : nextRecord)) - System.nanoTime();
                     if (sleepTime > 0) {
                         Thread.sleep(sleepTime / 1_000_000, (int) (sleepTime % 1_000_000));
                     }
@@ -128,6 +850,15 @@ public class Main implements Runnable{
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            startup.closeUnjoined();
+            try {
+                if (base != null) {
+                    base.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -136,8 +867,10 @@ public class Main implements Runnable{
         cli.registerConverter(SchedulerType.class, name -> SchedulerType.valueOf(name.toUpperCase()))
                 .registerConverter(Scale.class, name -> Scale.valueOf(name.toUpperCase()))
                 .registerConverter(Instrument.class, name -> Instrument.valueOf(name.toUpperCase()))
+                .registerConverter(SynthesizerType.class, name -> SynthesizerType.valueOf(name.toUpperCase()))
                 .setUnmatchedArgumentsAllowed(false)
                 .execute(args);
+        Log.flush();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+package me.bechberger.sos;
+
+import me.bechberger.sos.scheduler.BaseScheduler;
+import me.bechberger.sos.scheduler.BaseScheduler.LoadSample;
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Samples of a scheduler, pre-aggregated by the {@link Sampler}
+ * <p>
+ * The task stats, thread stats and the busy and idle times of the load are cumulative, so the stats are only read
+ * when the bucket is completed and only the load of the last sample is kept, the queue depths are snapshots,
+ * so they are summed and maxed over all samples. The waits are counted per bucket, from the difference
+ * of the cumulative wait histograms.
+ *
+ * @param firstSampleNs   time of the first sample
+ * @param lastSampleNs    time of the last sample
+ * @param taskStats       task stats at the completion of the bucket, empty before
+ * @param threadStats     thread stats at the completion of the bucket, empty before or if they aren't sampled
+ * @param load            load of the last sample
+ * @param sharedQueuedSum summed depth of the shared queue over the samples
+ * @param boostQueuedSum  summed depth of the boost queue over the samples
+ * @param maxLocalQueued  maximum depth of a queue of a CPU over the samples
+ * @param waitHistogram   tasks that started running in the samples by their wait,
+ *                        see {@link BaseScheduler#waitBucket}
+ */
+public record SampleBucket(long firstSampleNs, long lastSampleNs, int samples,
+                           Set<Map.Entry<Integer, TaskStat>> taskStats, Set<Map.Entry<Long, TaskStat>> threadStats,
+                           LoadSample load, long sharedQueuedSum, long maxSharedQueued, long boostQueuedSum,
+                           long maxLocalQueued, long[] waitHistogram) {
+
+    /**
+     * Bucket of a single sample, without stats
+     *
+     * @param waitHistogram waits since the previous sample
+     */
+    static SampleBucket of(LoadSample load, long[] waitHistogram) {
+        long maxLocalQueued = 0;
+        for (long queued : load.localQueued()) {
+            maxLocalQueued = Math.max(maxLocalQueued, queued);
+        }
+        return new SampleBucket(load.timestampNs(), load.timestampNs(), 1, Set.of(), Set.of(), load,
+                load.sharedQueued(), load.sharedQueued(), load.boostQueued(), maxLocalQueued, waitHistogram);
+    }
+
+    /** Merge with a later bucket, keeping the stats of the later one */
+    SampleBucket merge(SampleBucket later) {
+        long[] waits = waitHistogram.clone();
+        for (int bucket = 0; bucket < waits.length; bucket++) {
+            waits[bucket] += later.waitHistogram[bucket];
+        }
+        return new SampleBucket(firstSampleNs, later.lastSampleNs, samples + later.samples, later.taskStats,
+                later.threadStats, later.load, sharedQueuedSum + later.sharedQueuedSum,
+                Math.max(maxSharedQueued, later.maxSharedQueued), boostQueuedSum + later.boostQueuedSum,
+                Math.max(maxLocalQueued, later.maxLocalQueued), waits);
+    }
+
+    /** Same aggregates with the task and thread stats */
+    SampleBucket withStats(Set<Map.Entry<Integer, TaskStat>> taskStats, Set<Map.Entry<Long, TaskStat>> threadStats) {
+        return new SampleBucket(firstSampleNs, lastSampleNs, samples, taskStats, threadStats, load,
+                sharedQueuedSum, maxSharedQueued, boostQueuedSum, maxLocalQueued, waitHistogram);
+    }
+
+    /** Same aggregates with the task and thread stats of another bucket */
+    SampleBucket withStatsOf(SampleBucket other) {
+        return withStats(other.taskStats, other.threadStats);
+    }
+
+    public double averageSharedQueued() {
+        return (double) sharedQueuedSum / samples;
+    }
+
+    public double averageBoostQueued() {
+        return (double) boostQueuedSum / samples;
+    }
+
+    /** Average depth of the shared and the boost queue, the tasks that wait for any CPU */
+    public double averageGlobalQueued() {
+        return averageSharedQueued() + averageBoostQueued();
+    }
+
+    /** Number of tasks that started running in the samples */
+    public long waits() {
+        return Arrays.stream(waitHistogram).sum();
+    }
+
+    /**
+     * Upper bound of the wait histogram bucket that contains the percentile of the waits
+     *
+     * @param percentile 0 to 100
+     * @return 0 if no task started running, the lower bound for waits in the last bucket
+     */
+    public long waitPercentileNs(double percentile) {
+        long waits = waits();
+        if (waits == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * waits));
+        long counted = 0;
+        long boundNs = BaseScheduler.WAIT_HISTOGRAM_FIRST_NS;
+        for (int bucket = 0; bucket < waitHistogram.length - 1; bucket++) {
+            counted += waitHistogram[bucket];
+            if (counted >= rank) {
+                return boundNs;
+            }
+            boundNs *= 2;
+        }
+        return boundNs / 2;
+    }
+}
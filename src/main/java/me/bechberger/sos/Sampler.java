@@ -0,0 +1,126 @@
+package me.bechberger.sos;
+
+import me.bechberger.sos.scheduler.BaseScheduler;
+import me.bechberger.sos.scheduler.SchedulerStats;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Samples the load of a scheduler into buckets of a fixed number of samples,
+ * which the consumers (e.g. the music, the status output and the recorder) read at their own cadence
+ * <p>
+ * Every {@link Cursor} gets the buckets that were completed since its last read merged into one, so the sampling
+ * interval is independent of the consumers: sampling more often gives finer queue depths and earlier stats,
+ * sampling less often is cheaper. The task and thread stats are cumulative, so they are only read once per bucket,
+ * when it is completed. Only the last {@link #KEPT_BUCKETS} buckets are kept, a consumer that reads less
+ * often only loses the queue depths of older buckets. For the same reason the kept
+ * buckets only hold the aggregates, the task and thread stats are only kept for the latest completed bucket.
+ * Not thread-safe, the main loop samples and consumes.
+ */
+public class Sampler {
+
+    static final int KEPT_BUCKETS = 1024;
+
+    private final int samplesPerBucket;
+    private final boolean sampleThreads;
+    private SchedulerStats scheduler;
+    /** Bucket that gets the next samples, null if it has none yet */
+    private SampleBucket open;
+    /** Wait histogram of the previous sample, null if the scheduler didn't get sampled yet */
+    private long[] lastWaitHistogram;
+    /** Completed buckets without their stats */
+    private final ArrayDeque<SampleBucket> buckets = new ArrayDeque<>();
+    /** Latest completed bucket, with its stats */
+    private SampleBucket latest;
+    private long completedBuckets = 0;
+    private long samples = 0;
+
+    /**
+     * @param samplesPerBucket number of samples that are aggregated into a bucket
+     * @param sampleThreads    also read the thread stats
+     */
+    public Sampler(SchedulerStats scheduler, int samplesPerBucket, boolean sampleThreads) {
+        this.scheduler = scheduler;
+        this.samplesPerBucket = Math.max(1, samplesPerBucket);
+        this.sampleThreads = sampleThreads;
+    }
+
+    /** Sample the load of the scheduler, and its task and thread stats if this completes a bucket */
+    public void sample() {
+        var load = scheduler.sampleLoad();
+        var sample = SampleBucket.of(load, waitsSinceLastSample(load.waitHistogram()));
+        open = open == null ? sample : open.merge(sample);
+        samples++;
+        if (open.samples() >= samplesPerBucket) {
+            Set<Map.Entry<Long, BaseScheduler.TaskStat>> threadStats =
+                    sampleThreads ? scheduler.getThreadStatEntries() : Set.of();
+            latest = open.withStats(scheduler.getTaskStatEntries(), threadStats);
+            buckets.addLast(open);
+            completedBuckets++;
+            open = null;
+            if (buckets.size() > KEPT_BUCKETS) {
+                buckets.removeFirst();
+            }
+        }
+    }
+
+    /** Difference to the cumulative wait histogram of the previous sample, everything after switching */
+    private long[] waitsSinceLastSample(long[] waitHistogram) {
+        long[] waits = waitHistogram.clone();
+        if (lastWaitHistogram != null) {
+            for (int bucket = 0; bucket < waits.length; bucket++) {
+                waits[bucket] -= lastWaitHistogram[bucket];
+            }
+        }
+        lastWaitHistogram = waitHistogram;
+        return waits;
+    }
+
+    /** Sample another scheduler from now on, e.g. after switching the scheduler type */
+    public void setScheduler(SchedulerStats scheduler) {
+        this.scheduler = scheduler;
+        lastWaitHistogram = null;
+    }
+
+    /** Number of samples so far */
+    public long getSamples() {
+        return samples;
+    }
+
+    /** New cursor that starts with the next completed bucket */
+    public Cursor cursor() {
+        return new Cursor(completedBuckets);
+    }
+
+    /** Read position of a consumer */
+    public class Cursor {
+        /** Number of the next bucket to read */
+        private long next;
+
+        private Cursor(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Buckets completed since the last call, merged into one
+         *
+         * @return null if no bucket was completed
+         */
+        public SampleBucket poll() {
+            if (next >= completedBuckets) {
+                return null;
+            }
+            SampleBucket merged = null;
+            long number = completedBuckets - buckets.size();
+            for (SampleBucket bucket : buckets) {
+                if (number++ >= next) {
+                    merged = merged == null ? bucket : merged.merge(bucket);
+                }
+            }
+            next = completedBuckets;
+            return merged.withStatsOf(latest);
+        }
+    }
+}
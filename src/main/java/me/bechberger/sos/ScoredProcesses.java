@@ -1,16 +1,62 @@
 package me.bechberger.sos;
 
-import me.bechberger.ebpf.bpf.map.BPFHashMap;
 import me.bechberger.sos.scheduler.BaseScheduler;
 import me.bechberger.sos.util.ProcessSet;
 
 import java.util.*;
+import java.util.function.IntPredicate;
 
 public class ScoredProcesses {
 
     private final int keptStats;
 
-    public record SingleStat(long runtimeNs, long dispatches) {}
+    /**
+     * Stats of a process in a time slice or combined over the sliding window
+     *
+     * @param voluntarySwitches   switches as a task blocked
+     * @param involuntarySwitches switches while a task was still runnable
+     * @param sliceExhaustions    involuntary switches as the slice ran out
+     * @param assignedSliceNs     sum of the slices that the tasks got
+     * @param usedSliceNs         time that the tasks ran of these slices
+     */
+    public record SingleStat(long runtimeNs, long dispatches, long waitNs, long voluntarySwitches,
+                             long involuntarySwitches, long sliceExhaustions, long assignedSliceNs,
+                             long usedSliceNs) {
+
+        static final SingleStat ZERO = new SingleStat(0, 0, 0, 0, 0, 0, 0, 0);
+
+        /** Difference of two cumulative stats of the scheduler */
+        static SingleStat diff(BaseScheduler.TaskStat newStat, BaseScheduler.TaskStat oldStat) {
+            return new SingleStat(newStat.runtimeNs - oldStat.runtimeNs, newStat.dispatches - oldStat.dispatches,
+                    newStat.waitNs - oldStat.waitNs, newStat.voluntarySwitches - oldStat.voluntarySwitches,
+                    newStat.involuntarySwitches - oldStat.involuntarySwitches,
+                    newStat.sliceExhaustions - oldStat.sliceExhaustions,
+                    newStat.assignedSliceNs - oldStat.assignedSliceNs, newStat.usedSliceNs - oldStat.usedSliceNs);
+        }
+
+        SingleStat plus(SingleStat other) {
+            return new SingleStat(runtimeNs + other.runtimeNs, dispatches + other.dispatches, waitNs + other.waitNs,
+                    voluntarySwitches + other.voluntarySwitches, involuntarySwitches + other.involuntarySwitches,
+                    sliceExhaustions + other.sliceExhaustions, assignedSliceNs + other.assignedSliceNs,
+                    usedSliceNs + other.usedSliceNs);
+        }
+
+        SingleStat minus(SingleStat other) {
+            return new SingleStat(runtimeNs - other.runtimeNs, dispatches - other.dispatches, waitNs - other.waitNs,
+                    voluntarySwitches - other.voluntarySwitches, involuntarySwitches - other.involuntarySwitches,
+                    sliceExhaustions - other.sliceExhaustions, assignedSliceNs - other.assignedSliceNs,
+                    usedSliceNs - other.usedSliceNs);
+        }
+
+        public long switches() {
+            return voluntarySwitches + involuntarySwitches;
+        }
+
+        /** Average share of its slice that a task used before it stopped, 0 if unknown */
+        public double sliceUtilization() {
+            return assignedSliceNs == 0 ? 0 : (double) usedSliceNs / assignedSliceNs;
+        }
+    }
 
     public static class ProcessInfo {
         public final int pid;
@@ -31,7 +77,7 @@ public class ScoredProcesses {
             this.keptStats = keptStats;
             this.lastStat = lastStat;
             this.lastStats = new ArrayList<>();
-            this.combinedStat = new SingleStat(0, 0);
+            this.combinedStat = SingleStat.ZERO;
         }
 
         void update(BaseScheduler.TaskStat newStat) {
@@ -43,16 +89,17 @@ public class ScoredProcesses {
                 invalid = true;
                 return;
             }
-            runtimeDiff = newStat.runtimeNs - lastStat.runtimeNs;
-            dispatchesDiff = newStat.dispatches - lastStat.dispatches;
+            var diff = SingleStat.diff(newStat, lastStat);
+            runtimeDiff = diff.runtimeNs;
+            dispatchesDiff = diff.dispatches;
             changedRuntimeSinceLastCheck = runtimeDiff > 0;
             changedDispatchesSinceLastCheck = dispatchesDiff > 0;
-            lastStats.add(new SingleStat(runtimeDiff, dispatchesDiff));
+            lastStats.add(diff);
             if (lastStats.size() > keptStats) {
                 SingleStat removed = lastStats.remove(0);
-                combinedStat = new SingleStat(combinedStat.runtimeNs - removed.runtimeNs, combinedStat.dispatches - removed.dispatches);
+                combinedStat = combinedStat.minus(removed);
             }
-            combinedStat = new SingleStat(combinedStat.runtimeNs + runtimeDiff, combinedStat.dispatches + dispatchesDiff);
+            combinedStat = combinedStat.plus(diff);
             lastStat = newStat;
         }
 
@@ -64,6 +111,15 @@ public class ScoredProcesses {
             return lastStat.comm;
         }
 
+        public boolean boosted() {
+            return lastStat.boosted;
+        }
+
+        /** Longest time a task of the process waited to be run, since the start of the scheduler */
+        public long maxWaitNs() {
+            return lastStat.maxWaitNs;
+        }
+
         public boolean changedRuntimeSinceLastCheck() {
             return changedRuntimeSinceLastCheck;
         }
@@ -87,12 +143,20 @@ public class ScoredProcesses {
 
     Map<Integer, ProcessInfo> processInfos = new HashMap<>();
 
+    /** Is a process still alive? Processes that are not are dropped */
+    private final IntPredicate isAlive;
+
     public ScoredProcesses(int keptStats) {
+        this(keptStats, pid -> ProcessHandle.of(pid).flatMap(p -> p.info().command()).isPresent());
+    }
+
+    public ScoredProcesses(int keptStats, IntPredicate isAlive) {
         this.keptStats = keptStats;
+        this.isAlive = isAlive;
     }
 
     public void update(int pid, BaseScheduler.TaskStat newStat) {
-        if (ProcessHandle.of(pid).flatMap(p -> p.info().command()).isEmpty()) {
+        if (!isAlive.test(pid)) {
             processInfos.remove(pid);
             return;
         }
@@ -107,9 +171,14 @@ public class ScoredProcesses {
         }
     }
 
-    public void update(BPFHashMap<Integer, BaseScheduler.TaskStat> stats, ProcessSet filter) {
+    /**
+     * Update with the current stats
+     *
+     * @param stats entries of the stats map, e.g. {@code scheduler.getTaskStats().entrySet()}
+     */
+    public void update(Iterable<? extends Map.Entry<Integer, BaseScheduler.TaskStat>> stats, ProcessSet filter) {
         var availablePids = new HashSet<>();
-        for (var entry : stats.entrySet()) {
+        for (var entry : stats) {
             var stat = entry.getValue();
             if (filter.contains(entry.getKey())) {
                 update(entry.getKey(), stat);
@@ -137,6 +206,49 @@ public class ScoredProcesses {
                 .toList();
     }
 
+    /** Get the processes with the longest maximum wait time */
+    public List<Integer> getLongestWaitingProcessesSortedDescendingly(int count) {
+        return processInfos.entrySet().stream()
+                .sorted((e1, e2) -> Long.compare(e2.getValue().maxWaitNs(), e1.getValue().maxWaitNs()))
+                .limit(count)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    /**
+     * Average time per dispatch that the tasks of the boosted or of the other processes waited in the sliding window
+     */
+    public long getAverageWaitNs(boolean boosted) {
+        long waitNs = 0;
+        long dispatches = 0;
+        for (var info : processInfos.values()) {
+            if (info.boosted() == boosted) {
+                waitNs += info.combinedStat.waitNs;
+                dispatches += info.combinedStat.dispatches;
+            }
+        }
+        return dispatches == 0 ? 0 : waitNs / dispatches;
+    }
+
+    /** Stats of all processes combined over the sliding window, e.g. to check how the tasks use their slices */
+    public SingleStat getCombinedStat() {
+        var combined = SingleStat.ZERO;
+        for (var info : processInfos.values()) {
+            combined = combined.plus(info.combinedStat);
+        }
+        return combined;
+    }
+
+    /** Stats of the process combined over the sliding window */
+    public SingleStat getCombinedStat(int pid) {
+        return processInfos.containsKey(pid) ? processInfos.get(pid).combinedStat() : SingleStat.ZERO;
+    }
+
+    /** Is the process currently scored? */
+    public boolean contains(int pid) {
+        return processInfos.containsKey(pid);
+    }
+
     public boolean changedRuntimeSinceLastCheck(int pid) {
         return processInfos.containsKey(pid) && processInfos.get(pid).changedRuntimeSinceLastCheck();
     }
@@ -152,4 +264,12 @@ public class ScoredProcesses {
     public int getDispatchesInTimeSlice(int pid) {
         return processInfos.containsKey(pid) ? processInfos.get(pid).dispatchesInTimeSlice() : 0;
     }
+
+    public long getMaxWaitNs(int pid) {
+        return processInfos.containsKey(pid) ? processInfos.get(pid).maxWaitNs() : 0;
+    }
+
+    public String getComm(int pid) {
+        return processInfos.containsKey(pid) ? processInfos.get(pid).comm() : "";
+    }
 }
@@ -0,0 +1,96 @@
+package me.bechberger.sos;
+
+import me.bechberger.sos.scheduler.BaseScheduler;
+import me.bechberger.sos.util.ProcessSet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Ranks the threads of a selected process over the sliding window, the drill-down of {@link ScoredProcesses}
+ * <p>
+ * The threads are scored like processes, keyed by their thread id, from the thread stats of the scheduler,
+ * which are keyed by tgid (upper 32 bits) and pid. Thread names are read once per thread and cached,
+ * as many threads (e.g. of the JVM) are renamed after the scheduler saw them first.
+ */
+public class ScoredThreads {
+
+    /** Every thread of the selected process is scored */
+    private static final ProcessSet ALL_THREADS = new ProcessSet(List.of());
+
+    private final int keptStats;
+    private int tgid = -1;
+    private ScoredProcesses threads;
+    private final Map<Integer, String> names = new HashMap<>();
+
+    public ScoredThreads(int keptStats) {
+        this.keptStats = keptStats;
+    }
+
+    static int tgid(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int pid(long key) {
+        return (int) key;
+    }
+
+    /** Select the process whose threads are ranked, the ranking starts over if it changes */
+    public void select(int tgid) {
+        if (tgid == this.tgid) {
+            return;
+        }
+        this.tgid = tgid;
+        threads = new ScoredProcesses(keptStats, tid -> Files.exists(Path.of("/proc", "" + tgid, "task", "" + tid)));
+        names.clear();
+    }
+
+    /** Selected process, -1 if none is selected */
+    public int getSelected() {
+        return tgid;
+    }
+
+    /**
+     * Update with the current thread stats
+     *
+     * @param stats entries of the thread stats, e.g. {@code scheduler.getThreadStatEntries()}
+     */
+    public void update(Iterable<? extends Map.Entry<Long, BaseScheduler.TaskStat>> stats) {
+        if (threads == null) {
+            return;
+        }
+        List<Map.Entry<Integer, BaseScheduler.TaskStat>> selected = new ArrayList<>();
+        for (var entry : stats) {
+            if (tgid(entry.getKey()) == tgid) {
+                selected.add(Map.entry(pid(entry.getKey()), entry.getValue()));
+            }
+        }
+        threads.update(selected, ALL_THREADS);
+        names.keySet().removeIf(tid -> !threads.contains(tid));
+    }
+
+    /** Get the threads of the selected process that run the most in the sliding window */
+    public List<Integer> getMostRunThreadsSortedDescendingly(int count) {
+        return threads == null ? List.of() : threads.getMostRunProcessesSortedDescendingly(count);
+    }
+
+    /** Stats of the thread combined over the sliding window */
+    public ScoredProcesses.SingleStat getCombinedStat(int tid) {
+        return threads == null ? ScoredProcesses.SingleStat.ZERO : threads.getCombinedStat(tid);
+    }
+
+    /** Current name of the thread, read once, the name that the scheduler saw if it can't be read */
+    public String getName(int tid) {
+        return names.computeIfAbsent(tid, this::readName);
+    }
+
+    private String readName(int tid) {
+        try {
+            return Files.readString(Path.of("/proc", "" + tgid, "task", "" + tid, "comm")).strip();
+        } catch (IOException e) {
+            return threads.getComm(tid);
+        }
+    }
+}
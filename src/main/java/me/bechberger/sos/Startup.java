@@ -0,0 +1,112 @@
+package me.bechberger.sos;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static me.bechberger.sos.util.DurationConverter.nanoSecondsToString;
+
+/**
+ * Runs the phases of the startup and records how long each took
+ * <p>
+ * Phases that don't need the scheduler (e.g. opening the synthesizer) are forked onto their own threads, so they
+ * run while the scheduler is loaded and attached on the main thread. Not thread-safe, only the main thread
+ * forks and joins.
+ */
+class Startup {
+
+    private record Timing(String name, long startNs, long durationNs, boolean forked) {
+    }
+
+    private final long startNs = System.nanoTime();
+    private final List<Timing> timings = new ArrayList<>();
+    /** Forked phases whose result isn't owned by the caller yet */
+    private final List<Future<?>> unjoined = new ArrayList<>();
+
+    /** Run the phase on its own thread */
+    <T> Future<T> fork(String name, Callable<T> phase) {
+        var task = new FutureTask<>(() -> measure(name, phase, true));
+        var thread = new Thread(task, "startup " + name);
+        thread.setDaemon(true);
+        thread.start();
+        unjoined.add(task);
+        return task;
+    }
+
+    /** Wait for a forked phase, throws its exception */
+    <T> T join(Future<T> phase) throws Exception {
+        unjoined.remove(phase);
+        try {
+            return phase.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /** Run the phase on the current thread */
+    <T> T get(String name, Supplier<T> phase) {
+        try {
+            return measure(name, phase::get, false);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Run the phase on the current thread */
+    void run(String name, Runnable phase) {
+        get(name, () -> {
+            phase.run();
+            return null;
+        });
+    }
+
+    private <T> T measure(String name, Callable<T> phase, boolean forked) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return phase.call();
+        } finally {
+            long end = System.nanoTime();
+            synchronized (timings) {
+                timings.add(new Timing(name, start, end - start, forked));
+            }
+        }
+    }
+
+    /** Wait for the forked phases that weren't joined and close their results, e.g. after a failed startup */
+    void closeUnjoined() {
+        for (var phase : unjoined) {
+            try {
+                if (phase.get() instanceof AutoCloseable closeable) {
+                    closeable.close();
+                }
+            } catch (Exception e) {
+                // the phase failed or its result can't be closed, there is nothing left to clean up
+            }
+        }
+        unjoined.clear();
+    }
+
+    /** Total time and the time of every finished phase, in the order they started */
+    String summary() {
+        List<Timing> finished;
+        synchronized (timings) {
+            finished = new ArrayList<>(timings);
+        }
+        return "Startup took " + nanoSecondsToString(System.nanoTime() - startNs, 3) + ": " +
+                finished.stream().sorted(Comparator.comparingLong(Timing::startNs))
+                        .map(t -> t.name + " " + nanoSecondsToString(t.durationNs, 3) +
+                                (t.forked ? " (in parallel)" : ""))
+                        .collect(Collectors.joining(", "));
+    }
+}
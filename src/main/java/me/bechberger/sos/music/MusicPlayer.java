@@ -2,12 +2,9 @@ package me.bechberger.sos.music;
 
 import me.bechberger.sos.Main;
 import me.bechberger.sos.ScoredProcesses;
+import me.bechberger.sos.util.Log;
 import me.bechberger.sos.util.ProcessSet;
 
-import javax.sound.midi.MidiChannel;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.MidiUnavailableException;
-import javax.sound.midi.Synthesizer;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -45,7 +42,12 @@ public class MusicPlayer implements AutoCloseable {
             }
         }
 
-        /** Returns the notes that changed owners */
+        /**
+         * Returns the notes that changed owners
+         * <p>
+         * The new processes get the free notes in the order of the list, the others don't get a note
+         * when all notes are taken.
+         */
         public Set<Integer> update(List<Integer> liveProcesses) {
             Set<Integer> processesToRemove = noteMap.keySet().stream().filter(p -> !liveProcesses.contains(p)).collect(Collectors.toSet());
             var notesThatChangedOwners = new HashSet<Integer>();
@@ -59,7 +61,7 @@ public class MusicPlayer implements AutoCloseable {
             // take the len(processesToAdd) notes from availableNotes that are closest to the middle of the scale
             List<Integer> notesClosesToCenter = availableNotes.stream().sorted(Comparator.comparingInt(n -> Math.abs(n - scale.getCenter()))).toList();
 
-            for (int i = 0; i < processesToAdd.size(); i++) {
+            for (int i = 0; i < Math.min(processesToAdd.size(), notesClosesToCenter.size()); i++) {
                 noteMap.put(processesToAdd.get(i), notesClosesToCenter.get(i));
                 availableNotes.remove(notesClosesToCenter.get(i));
             }
@@ -92,12 +94,20 @@ public class MusicPlayer implements AutoCloseable {
 
     private final long intervalNs;
 
-    private Synthesizer synthesizer;
-    private MidiChannel[] channels;
+    private final NoteOutput output;
+    /** Plays the scheduling pressure, null if disabled */
+    private PercussionVoice percussion;
+    /** Log the enabled notes as verbose messages */
+    private final boolean printNotes;
 
     private Set<Integer> currentlyEnabledRuntimeNotes = new HashSet<>();
 
     public MusicPlayer(Scale scale, Instrument runtimeInstrument, Instrument dispatchesInstrument, ScoredProcesses scoredProcesses, long intervalNs) {
+        this(scale, runtimeInstrument, dispatchesInstrument, scoredProcesses, intervalNs, new SynthesizerOutput(), true);
+    }
+
+    public MusicPlayer(Scale scale, Instrument runtimeInstrument, Instrument dispatchesInstrument, ScoredProcesses scoredProcesses, long intervalNs,
+                       NoteOutput output, boolean printNotes) {
         this.scale = scale;
         this.runtimeInstrument = runtimeInstrument;
         this.dispatchesInstrument = dispatchesInstrument;
@@ -105,16 +115,11 @@ public class MusicPlayer implements AutoCloseable {
         this.runtimeMusicToNote = new MusicToNote(scale);
         this.dispatchesMusicToNote = new MusicToNote(scale);
         this.intervalNs = intervalNs;
+        this.output = output;
+        this.printNotes = printNotes;
 
-        try {
-            synthesizer = MidiSystem.getSynthesizer();
-            synthesizer.open();
-        } catch (MidiUnavailableException e) {
-            throw new RuntimeException(e);
-        }
-        channels = synthesizer.getChannels();
-        channels[0].programChange(runtimeInstrument.getId()); // channel 0 is for the runtime instrument
-        channels[1].programChange(dispatchesInstrument.getId()); // channel 1 is for the dispatches instrument
+        output.programChange(0, runtimeInstrument.getId()); // channel 0 is for the runtime instrument
+        output.programChange(1, dispatchesInstrument.getId()); // channel 1 is for the dispatches instrument
     }
 
     public void update() {
@@ -127,7 +132,7 @@ public class MusicPlayer implements AutoCloseable {
         var notesThatChangedOwners = runtimeMusicToNote.update(mostRun);
         // disable notes that changed owners
         for (Integer note : notesThatChangedOwners) {
-            channels[0].noteOff(note);
+            output.noteOff(0, note);
             currentlyEnabledRuntimeNotes.remove(note);
         }
         // enable notes that are still in the list of top processes
@@ -137,22 +142,26 @@ public class MusicPlayer implements AutoCloseable {
         runtimeMusicToNote.forEach((process, note) -> {
             checkedNotes.add(note);
             if (!scoredProcesses.changedRuntimeSinceLastCheck(process)) {
-                channels[0].noteOff(note);
+                output.noteOff(0, note);
                 currentlyEnabledRuntimeNotes.remove(note);
                 return;
             }
             var loudness = (int) (Math.min(127, 127 * scoredProcesses.getRuntimeInTimeSlice(process) / intervalNs));
-            channels[0].noteOn(note, loudness);
+            output.noteOn(0, note, loudness);
             maxLoudness.set(Math.max(maxLoudness.get(), loudness));
             currentlyEnabledRuntimeNotes.add(note);
-            System.out.println("Enabling note " + note + " for process " + process + " with loudness " + loudness + " (" + ProcessHandle.of(process).flatMap(p -> p.info().command()).orElse("") + ") " + nanoSecondsToString(scoredProcesses.getRuntimeInTimeSlice(process), 3));
+            if (printNotes && Log.isVerbose()) {
+                // the command is looked up on the log thread
+                long runtimeNs = scoredProcesses.getRuntimeInTimeSlice(process);
+                Log.verbose(() -> "Enabling note " + note + " for process " + process + " with loudness " + loudness + " (" + ProcessHandle.of(process).flatMap(p -> p.info().command()).orElse("") + ") " + nanoSecondsToString(runtimeNs, 3));
+            }
         });
         for (int i = 0; i < scale.length(); i++) {
             var note = scale.get(i);
             if (checkedNotes.contains(note)) {
                 continue;
             }
-            channels[0].noteOff(note);
+            output.noteOff(0, note);
         }
         return maxLoudness.get();
     }
@@ -165,7 +174,7 @@ public class MusicPlayer implements AutoCloseable {
 
         // disable notes that changed owners
         for (int i = 0; i < scale.length(); i++) {
-            channels[1].noteOff(scale.get(i));
+            output.noteOff(1, scale.get(i));
         }
         // enable notes that are mapped to a process that was dispatched
         // scale by the number of dispatches (max is 127 and is reserved for the max dispatches)
@@ -174,12 +183,34 @@ public class MusicPlayer implements AutoCloseable {
             return;
         }
         dispatchesMusicToNote.forEach((process, note) -> {
-            channels[1].noteOn(note, maxLoudness * scoredProcesses.getDispatchesInTimeSlice(process) / maxDispatches);
+            output.noteOn(1, note, maxLoudness * scoredProcesses.getDispatchesInTimeSlice(process) / maxDispatches);
         });
     }
 
+    /**
+     * Play the latency and the queued tasks on the percussion channel from now on
+     *
+     * @see PercussionVoice
+     */
+    public void enablePercussion(long latencyThresholdNs, long queueThreshold) {
+        percussion = new PercussionVoice(output, latencyThresholdNs, queueThreshold);
+    }
+
+    /**
+     * Play the scheduling pressure on the percussion channel, if enabled
+     *
+     * @param tailWaitNs   wait of the tail percentile
+     * @param medianWaitNs median wait
+     * @param queued       queued tasks
+     */
+    public void updatePercussion(long tailWaitNs, long medianWaitNs, double queued) {
+        if (percussion != null) {
+            percussion.update(tailWaitNs, medianWaitNs, queued);
+        }
+    }
+
     @Override
     public void close() {
-        synthesizer.close();
+        output.close();
     }
 }
@@ -0,0 +1,17 @@
+package me.bechberger.sos.music;
+
+/**
+ * Receives the notes played by the {@link MusicPlayer}, channels and notes are MIDI channels and notes
+ */
+public interface NoteOutput extends AutoCloseable {
+
+    void programChange(int channel, int program);
+
+    /** Start playing a note, a velocity of 0 stops the note */
+    void noteOn(int channel, int note, int velocity);
+
+    void noteOff(int channel, int note);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,78 @@
+package me.bechberger.sos.music;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plays the scheduling pressure on the General MIDI percussion channel, so that late wakeups and queued tasks
+ * can be heard
+ * <p>
+ * The voice is silent as long as the latency and the queues are below their thresholds. Above, every beat plays
+ * <ul>
+ *     <li>a snare drum if the tail latency (e.g. the 99th percentile of the waits) is above the latency
+ *     threshold</li>
+ *     <li>a crash cymbal if even the median wait is above the latency threshold</li>
+ *     <li>a bass drum if more tasks are queued than the queue threshold</li>
+ * </ul>
+ * Every drum gets louder with every doubling above its threshold.
+ */
+public class PercussionVoice {
+
+    /** Channel 10 in General MIDI, which plays a drum kit */
+    static final int CHANNEL = 9;
+    static final int BASS_DRUM = 36;
+    static final int SNARE_DRUM = 38;
+    static final int CRASH_CYMBAL = 49;
+    /** Velocity at the threshold */
+    private static final int BASE_VELOCITY = 64;
+    /** Velocity added with every doubling above the threshold */
+    private static final int VELOCITY_PER_DOUBLING = 16;
+
+    private final NoteOutput output;
+    private final long latencyThresholdNs;
+    private final long queueThreshold;
+    private final List<Integer> playing = new ArrayList<>();
+
+    /**
+     * @param latencyThresholdNs wait between being enqueued and running, 0 disables the snare drum and the cymbal
+     * @param queueThreshold     queued tasks, 0 disables the bass drum
+     */
+    PercussionVoice(NoteOutput output, long latencyThresholdNs, long queueThreshold) {
+        this.output = output;
+        this.latencyThresholdNs = latencyThresholdNs;
+        this.queueThreshold = queueThreshold;
+    }
+
+    static int velocity(double value, double threshold) {
+        double doublings = Math.log(value / threshold) / Math.log(2);
+        return (int) Math.min(127, BASE_VELOCITY + VELOCITY_PER_DOUBLING * doublings);
+    }
+
+    /**
+     * Play the current beat
+     *
+     * @param tailWaitNs   wait of the tail percentile
+     * @param medianWaitNs median wait
+     * @param queued       queued tasks
+     */
+    void update(long tailWaitNs, long medianWaitNs, double queued) {
+        for (int note : playing) {
+            output.noteOff(CHANNEL, note);
+        }
+        playing.clear();
+        if (latencyThresholdNs > 0 && tailWaitNs > latencyThresholdNs) {
+            play(SNARE_DRUM, velocity(tailWaitNs, latencyThresholdNs));
+        }
+        if (latencyThresholdNs > 0 && medianWaitNs > latencyThresholdNs) {
+            play(CRASH_CYMBAL, velocity(medianWaitNs, latencyThresholdNs));
+        }
+        if (queueThreshold > 0 && queued > queueThreshold) {
+            play(BASS_DRUM, velocity(queued, queueThreshold));
+        }
+    }
+
+    private void play(int note, int velocity) {
+        output.noteOn(CHANNEL, note, velocity);
+        playing.add(note);
+    }
+}
@@ -0,0 +1,132 @@
+package me.bechberger.sos.music;
+
+import com.sun.media.sound.AudioSynthesizer;
+
+import javax.sound.midi.*;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Records the notes into a MIDI sequence instead of playing them, the time is set explicitly,
+ * so that a recording can be rendered faster than real-time
+ * <p>
+ * The sequence can be written as a MIDI file or rendered as a WAV file with the software synthesizer,
+ * neither requires a sound device.
+ */
+public class SequenceOutput implements NoteOutput {
+
+    /** Ticks per quarter note, with {@link #TEMPO_US_PER_QUARTER} a tick is a millisecond */
+    private static final int RESOLUTION = 500;
+    private static final int TEMPO_US_PER_QUARTER = 500_000;
+    private static final long NS_PER_TICK = 1_000_000;
+    /** Time after the last event that is rendered, so that the last notes can fade out */
+    private static final long RELEASE_US = 1_000_000;
+
+    private final Sequence sequence;
+    private final Track track;
+    /** Notes that are currently on, to skip the note offs for notes that aren't */
+    private final boolean[][] playing = new boolean[16][128];
+    private long tick = 0;
+
+    public SequenceOutput() {
+        try {
+            sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+            track = sequence.createTrack();
+            byte[] tempo = {(byte) (TEMPO_US_PER_QUARTER >> 16), (byte) (TEMPO_US_PER_QUARTER >> 8), (byte) TEMPO_US_PER_QUARTER};
+            track.add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+        } catch (InvalidMidiDataException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Set the time of the following notes, relative to the start */
+    public void setTimeNs(long timeNs) {
+        tick = timeNs / NS_PER_TICK;
+    }
+
+    public long getTimeNs() {
+        return tick * NS_PER_TICK;
+    }
+
+    private void add(int command, int channel, int data1, int data2) {
+        try {
+            track.add(new MidiEvent(new ShortMessage(command, channel, data1, data2), tick));
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void programChange(int channel, int program) {
+        add(ShortMessage.PROGRAM_CHANGE, channel, program, 0);
+    }
+
+    /** Like the channels of the synthesizer, invalid notes are ignored */
+    private static boolean isValidNote(int note) {
+        return note >= 0 && note < 128;
+    }
+
+    @Override
+    public void noteOn(int channel, int note, int velocity) {
+        if (!isValidNote(note)) {
+            return;
+        }
+        add(ShortMessage.NOTE_ON, channel, note, velocity);
+        playing[channel][note] = velocity > 0;
+    }
+
+    @Override
+    public void noteOff(int channel, int note) {
+        if (isValidNote(note) && playing[channel][note]) {
+            add(ShortMessage.NOTE_OFF, channel, note, 0);
+            playing[channel][note] = false;
+        }
+    }
+
+    /** Stop all notes at the current time */
+    @Override
+    public void close() {
+        for (int channel = 0; channel < playing.length; channel++) {
+            for (int note = 0; note < playing[channel].length; note++) {
+                noteOff(channel, note);
+            }
+        }
+    }
+
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    public void writeMidi(Path file) throws IOException {
+        MidiSystem.write(sequence, 1, file.toFile());
+    }
+
+    /**
+     * Render the sequence with the software synthesizer into a WAV file (44.1kHz, 16 bit, stereo)
+     */
+    public void writeWav(Path file) throws IOException, MidiUnavailableException {
+        if (!(MidiSystem.getSynthesizer() instanceof AudioSynthesizer synthesizer)) {
+            throw new MidiUnavailableException("No software synthesizer available");
+        }
+        var format = new AudioFormat(44100, 16, 2, true, false);
+        AudioInputStream stream = synthesizer.openStream(format, null);
+        try {
+            // the synthesizer plays the messages at their timestamps in the rendered stream
+            Receiver receiver = synthesizer.getReceiver();
+            for (int i = 0; i < track.size(); i++) {
+                var event = track.get(i);
+                if (!(event.getMessage() instanceof MetaMessage)) {
+                    receiver.send(event.getMessage(), event.getTick() * NS_PER_TICK / 1000);
+                }
+            }
+            long frames = (long) (format.getFrameRate() * (sequence.getMicrosecondLength() + RELEASE_US) / 1_000_000);
+            AudioSystem.write(new AudioInputStream(stream, format, frames), AudioFileFormat.Type.WAVE, file.toFile());
+        } finally {
+            synthesizer.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package me.bechberger.sos.music;
+
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * Plays the notes live with the default synthesizer of the {@link MidiSystem}
+ */
+public class SynthesizerOutput implements NoteOutput {
+
+    private final Synthesizer synthesizer;
+    private final MidiChannel[] channels;
+
+    public SynthesizerOutput() {
+        try {
+            synthesizer = MidiSystem.getSynthesizer();
+            synthesizer.open();
+        } catch (MidiUnavailableException e) {
+            throw new RuntimeException(e);
+        }
+        channels = synthesizer.getChannels();
+    }
+
+    @Override
+    public void programChange(int channel, int program) {
+        channels[channel].programChange(program);
+    }
+
+    @Override
+    public void noteOn(int channel, int note, int velocity) {
+        channels[channel].noteOn(note, velocity);
+    }
+
+    @Override
+    public void noteOff(int channel, int note) {
+        channels[channel].noteOff(note);
+    }
+
+    @Override
+    public void close() {
+        synthesizer.close();
+    }
+}
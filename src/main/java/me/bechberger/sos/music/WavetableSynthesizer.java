@@ -0,0 +1,364 @@
+package me.bechberger.sos.music;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Arrays;
+
+/**
+ * Small wavetable synthesizer that plays the notes directly into a {@link SourceDataLine}
+ * or renders them into memory
+ * <p>
+ * Every channel has a fixed pool of voices (e.g. the length of the scale), when it is exhausted, the quietest voice
+ * is reused. The wavetables are computed additively from the harmonics of a timbre per instrument family up front,
+ * so the render loop doesn't allocate and can use small buffers, which keeps the latency low. Channel 10 plays
+ * drums like in General MIDI, the note selects a decaying sine (bass drum) or noise (snare drum and cymbals),
+ * which every voice generates with its own xorshift generator, so it doesn't repeat audibly like a looped table.
+ */
+public class WavetableSynthesizer implements NoteOutput {
+
+    public static final float SAMPLE_RATE = 44100;
+    /** Mono, 16 bit signed little endian */
+    public static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+
+    private static final int CHANNELS = 16;
+    /** Channel 10 in General MIDI */
+    private static final int PERCUSSION_CHANNEL = 9;
+    /** Samples per wavetable period */
+    private static final int TABLE_SIZE = 2048;
+    /** Frames that are rendered at once, around 6ms */
+    private static final int BLOCK_FRAMES = 256;
+    /** Blocks buffered in the line */
+    private static final int LINE_BLOCKS = 4;
+    private static final float ATTACK_SECONDS = 0.005f;
+    private static final float RELEASE_SECONDS = 0.05f;
+    /** Envelope level below which a voice is silent */
+    private static final float SILENT = 0.0001f;
+    /** Gain of a voice at full velocity, leaves headroom for multiple voices */
+    private static final float VOICE_GAIN = 0.15f;
+
+    /** Timbre of an instrument family of the General MIDI programs */
+    private enum Timbre {
+        PIANO(2f, 1, 0.5, 0.3, 0.15, 0.1),
+        MALLET(4f, 1, 0, 0, 0.25),
+        ORGAN(0f, 1, 0.7, 0.5, 0.3, 0.2, 0.1, 0.05),
+        STRINGS(0.2f, 1, 0.5, 0.33, 0.25, 0.2, 0.17, 0.14),
+        BRASS(0.3f, 1, 0.8, 0.6, 0.4, 0.25, 0.15),
+        FLUTE(0.2f, 1, 0.1, 0.05),
+        SYNTH(0.5f, 1, 0, 0.33, 0, 0.2, 0, 0.14);
+
+        /** Exponential decay of the amplitude per second while the note is held */
+        final float decayPerSecond;
+        /** Amplitudes of the harmonics, starting with the fundamental */
+        final double[] harmonics;
+
+        Timbre(float decayPerSecond, double... harmonics) {
+            this.decayPerSecond = decayPerSecond;
+            this.harmonics = harmonics;
+        }
+
+        static Timbre forProgram(int program) {
+            return switch (program / 8) {
+                case 0, 3, 4 -> PIANO;
+                case 1 -> MALLET;
+                case 2 -> ORGAN;
+                case 5, 6 -> STRINGS;
+                case 7, 8 -> BRASS;
+                case 9 -> FLUTE;
+                default -> SYNTH;
+            };
+        }
+
+        float[] createTable() {
+            float[] table = new float[TABLE_SIZE + 1];
+            float max = 0;
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                double sum = 0;
+                for (int h = 0; h < harmonics.length; h++) {
+                    sum += harmonics[h] * Math.sin(2 * Math.PI * (h + 1) * i / TABLE_SIZE);
+                }
+                table[i] = (float) sum;
+                max = Math.max(max, Math.abs(table[i]));
+            }
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                table[i] /= max;
+            }
+            // copy of the first sample for the interpolation
+            table[TABLE_SIZE] = table[0];
+            return table;
+        }
+    }
+
+    /** Drum of the percussion channel */
+    private enum Drum {
+        BASS(60, 12f),
+        SNARE(0, 25f),
+        CYMBAL(0, 2.5f);
+
+        /** Frequency of the sine, 0 for noise */
+        final float frequency;
+        final float decayPerSecond;
+
+        Drum(float frequency, float decayPerSecond) {
+            this.frequency = frequency;
+            this.decayPerSecond = decayPerSecond;
+        }
+
+        /** Drum for a note of the General MIDI percussion key map */
+        static Drum forNote(int note) {
+            if (note <= 36) {
+                return BASS;
+            }
+            return note <= 40 ? SNARE : CYMBAL;
+        }
+    }
+
+    private static final class Voice {
+        boolean active = false;
+        boolean attacking = false;
+        boolean released = false;
+        int note = -1;
+        /** Plays noise instead of the table */
+        boolean noise;
+        /** State of the xorshift generator of the noise, never 0 */
+        int noiseState;
+        float[] table;
+        float phase;
+        float increment;
+        float gain;
+        float envelope;
+        float decay;
+    }
+
+    private final int polyphony;
+    /** Voices of channel c are at c * polyphony until (c + 1) * polyphony */
+    private final Voice[] voices;
+    private final float[][] tables;
+    private final float[][] channelTables = new float[CHANNELS][];
+    private final float[] channelDecays = new float[CHANNELS];
+    private final float[] sineTable = createSineTable();
+    private final float[] drumDecays = new float[Drum.values().length];
+    /** Phase increment per note */
+    private final float[] increments = new float[128];
+    private final float attackStep = 1 / (ATTACK_SECONDS * SAMPLE_RATE);
+    private final float release = (float) Math.exp(Math.log(SILENT) / (RELEASE_SECONDS * SAMPLE_RATE));
+    private final float[] mix = new float[BLOCK_FRAMES];
+
+    private SourceDataLine line;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    /**
+     * Create a synthesizer that only renders into memory, until it is {@link #start() started}
+     *
+     * @param polyphony number of notes that a channel can play at the same time
+     */
+    public WavetableSynthesizer(int polyphony) {
+        this.polyphony = polyphony;
+        this.voices = new Voice[CHANNELS * polyphony];
+        for (int i = 0; i < voices.length; i++) {
+            voices[i] = new Voice();
+            // odd constant times a number below 2^32, so it isn't 0
+            voices[i].noiseState = 0x9E3779B9 * (i + 1);
+        }
+        var timbres = Timbre.values();
+        tables = new float[timbres.length][];
+        for (Timbre timbre : timbres) {
+            tables[timbre.ordinal()] = timbre.createTable();
+        }
+        for (int note = 0; note < increments.length; note++) {
+            increments[note] = (float) (TABLE_SIZE * 440 * Math.pow(2, (note - 69) / 12.0) / SAMPLE_RATE);
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            programChange(channel, 0);
+        }
+        for (Drum drum : Drum.values()) {
+            drumDecays[drum.ordinal()] = (float) Math.exp(-drum.decayPerSecond / SAMPLE_RATE);
+        }
+    }
+
+    private static float[] createSineTable() {
+        float[] table = new float[TABLE_SIZE + 1];
+        for (int i = 0; i <= TABLE_SIZE; i++) {
+            table[i] = (float) Math.sin(2 * Math.PI * i / TABLE_SIZE);
+        }
+        return table;
+    }
+
+    /** Next state of the xorshift generator of the noise, its period is 2^32 - 1 */
+    private static int xorshift(int state) {
+        state ^= state << 13;
+        state ^= state >>> 17;
+        state ^= state << 5;
+        return state;
+    }
+
+    /** Play into the default audio line, on a separate thread */
+    public void start() throws LineUnavailableException {
+        line = AudioSystem.getSourceDataLine(FORMAT);
+        line.open(FORMAT, BLOCK_FRAMES * LINE_BLOCKS * FORMAT.getFrameSize());
+        line.start();
+        running = true;
+        thread = new Thread(this::play, "wavetable-synthesizer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void play() {
+        byte[] block = new byte[BLOCK_FRAMES * FORMAT.getFrameSize()];
+        while (running) {
+            render(block, 0, BLOCK_FRAMES);
+            // blocks while the line is full
+            line.write(block, 0, block.length);
+        }
+    }
+
+    @Override
+    public synchronized void programChange(int channel, int program) {
+        var timbre = Timbre.forProgram(program);
+        channelTables[channel] = tables[timbre.ordinal()];
+        channelDecays[channel] = (float) Math.exp(-timbre.decayPerSecond / SAMPLE_RATE);
+    }
+
+    @Override
+    public synchronized void noteOn(int channel, int note, int velocity) {
+        if (note < 0 || note >= increments.length) {
+            return;
+        }
+        if (velocity == 0) {
+            noteOff(channel, note);
+            return;
+        }
+        Voice voice = null;
+        Voice quietest = null;
+        for (int i = channel * polyphony; i < (channel + 1) * polyphony; i++) {
+            var candidate = voices[i];
+            if (candidate.active && candidate.note == note) {
+                voice = candidate;
+                break;
+            }
+            if (!candidate.active) {
+                if (voice == null) {
+                    voice = candidate;
+                }
+            } else if (quietest == null || candidate.envelope < quietest.envelope) {
+                quietest = candidate;
+            }
+        }
+        if (voice == null) {
+            voice = quietest;
+        }
+        if (!voice.active || voice.note != note) {
+            voice.phase = 0;
+            voice.envelope = 0;
+        }
+        voice.active = true;
+        voice.attacking = true;
+        voice.released = false;
+        voice.note = note;
+        voice.gain = VOICE_GAIN * velocity / 127;
+        if (channel == PERCUSSION_CHANNEL) {
+            var drum = Drum.forNote(note);
+            voice.noise = drum.frequency == 0;
+            voice.table = sineTable;
+            voice.increment = TABLE_SIZE * drum.frequency / SAMPLE_RATE;
+            voice.decay = drumDecays[drum.ordinal()];
+        } else {
+            voice.noise = false;
+            voice.table = channelTables[channel];
+            voice.increment = increments[note];
+            voice.decay = channelDecays[channel];
+        }
+    }
+
+    @Override
+    public synchronized void noteOff(int channel, int note) {
+        for (int i = channel * polyphony; i < (channel + 1) * polyphony; i++) {
+            if (voices[i].active && voices[i].note == note) {
+                voices[i].released = true;
+            }
+        }
+    }
+
+    /**
+     * Render the next frames in the {@link #FORMAT} into the buffer, doesn't allocate
+     * <p>
+     * Only used by the playing thread after the synthesizer is started.
+     */
+    public void render(byte[] target, int offset, int frames) {
+        for (int start = 0; start < frames; start += BLOCK_FRAMES) {
+            int blockFrames = Math.min(BLOCK_FRAMES, frames - start);
+            renderBlock(blockFrames);
+            for (int i = 0; i < blockFrames; i++) {
+                int sample = (int) (Math.max(-1, Math.min(1, mix[i])) * Short.MAX_VALUE);
+                int index = offset + (start + i) * 2;
+                target[index] = (byte) sample;
+                target[index + 1] = (byte) (sample >> 8);
+            }
+        }
+    }
+
+    private synchronized void renderBlock(int frames) {
+        Arrays.fill(mix, 0, frames, 0);
+        for (Voice voice : voices) {
+            if (!voice.active) {
+                continue;
+            }
+            float[] table = voice.table;
+            float phase = voice.phase;
+            int noiseState = voice.noiseState;
+            float envelope = voice.envelope;
+            boolean attacking = voice.attacking;
+            for (int i = 0; i < frames; i++) {
+                float sample;
+                if (voice.noise) {
+                    noiseState = xorshift(noiseState);
+                    // the state as fraction of 2^31, between -1 and 1
+                    sample = noiseState * 0x1p-31f;
+                } else {
+                    int index = (int) phase;
+                    float fraction = phase - index;
+                    sample = table[index] + (table[index + 1] - table[index]) * fraction;
+                    phase += voice.increment;
+                    if (phase >= TABLE_SIZE) {
+                        phase -= TABLE_SIZE;
+                    }
+                }
+                mix[i] += sample * envelope * voice.gain;
+                if (voice.released) {
+                    envelope *= release;
+                } else if (attacking) {
+                    envelope += attackStep;
+                    if (envelope >= 1) {
+                        envelope = 1;
+                        attacking = false;
+                    }
+                } else {
+                    envelope *= voice.decay;
+                }
+            }
+            voice.phase = phase;
+            voice.noiseState = noiseState;
+            voice.envelope = envelope;
+            voice.attacking = attacking;
+            if (envelope < SILENT) {
+                voice.active = false;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            line.stop();
+            line.close();
+        }
+    }
+}
@@ -1,36 +1,72 @@
 package me.bechberger.sos.scheduler;
 
+import me.bechberger.ebpf.annotations.AlwaysInline;
 import me.bechberger.ebpf.annotations.Size;
 import me.bechberger.ebpf.annotations.Type;
 import me.bechberger.ebpf.annotations.Unsigned;
 import me.bechberger.ebpf.annotations.bpf.BPFFunction;
 import me.bechberger.ebpf.annotations.bpf.BPFInterface;
+import me.bechberger.ebpf.bpf.BPFJ;
 import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.Scheduler;
+import me.bechberger.ebpf.bpf.map.BPFArray;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.runtime.BpfDefinitions;
 import me.bechberger.ebpf.runtime.TaskDefinitions;
 import me.bechberger.ebpf.type.Ptr;
 
+import java.util.Map;
+import java.util.Set;
+
 import static me.bechberger.ebpf.bpf.Scheduler.PerProcessFlags.PF_KTHREAD;
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_create_dsq;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_dsq_move;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_dsq_nr_queued;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_nr_cpu_ids;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_pick_idle_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_task_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_test_and_clear_cpu_idle;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL_ON;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_enq_flags.SCX_ENQ_PREEMPT;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_prandom_u32;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_ktime_get_ns;
 import static me.bechberger.sos.util.DurationConverter.nanoSecondsToString;
 
 @BPFInterface
-public interface BaseScheduler extends Scheduler, AutoCloseable {
+public interface BaseScheduler extends Scheduler, ManagedScheduler {
 
     /**
      * Settings for the scheduler
      *
-     * @param sliceLength      in ns used for scheduling
+     * @param sliceLength      in ns used for scheduling, the target latency if the slice length is scaled
      * @param cores            number of cores to schedule to (assuming contiguous core ids)
      * @param scaleSliceLength if true, the slice length is scaled by the number of tasks in the queue
+     * @param minSliceLength   in ns, lower bound for the scaled slice length
+     * @param starvationThreshold in ns, tasks that waited longer are preferred by the FIFO and lottery scheduler,
+     *                         0 disables this
+     * @param boostShare       maximum share of the CPU time in percent that the boosted (filtered) processes get
+     *                         before the other processes, 0 disables boosting
+     * @param traceSampleRate  every how many slices (on average) a slice is sent to the slice events,
+     *                         0 disables tracing
+     * @param traceFilteredOnly only trace the slices of the filtered processes
+     * @param threadStats      also keep the stats of every thread of the filtered processes
      */
     @Type
-    record SchedulerSetting(@Unsigned int sliceLength, @Unsigned int cores, boolean scaleSliceLength) {
+    record SchedulerSetting(@Unsigned int sliceLength, @Unsigned int cores, boolean scaleSliceLength,
+                            @Unsigned int minSliceLength, @Unsigned int starvationThreshold,
+                            @Unsigned int boostShare, @Unsigned int traceSampleRate, boolean traceFilteredOnly,
+                            boolean threadStats) {
     }
 
     static final int COMM_LENGTH = 40;
 
+    /** Buckets of the wait histogram, the last one counts every longer wait */
+    static final int WAIT_BUCKETS = 24;
+    /** Upper bound of the first bucket of the wait histogram, the bound doubles with every further bucket */
+    static final long WAIT_HISTOGRAM_FIRST_NS = 1000;
+
     @Type
     class TaskStat {
         @Size(COMM_LENGTH)
@@ -39,6 +75,29 @@ public interface BaseScheduler extends Scheduler, AutoCloseable {
         public long dispatches;
         @Unsigned
         public long runtimeNs;
+        /** Longest time that a task of the process waited between being enqueued and running */
+        @Unsigned
+        public long maxWaitNs;
+        /** Time that the tasks of the process waited between being enqueued and running */
+        @Unsigned
+        public long waitNs;
+        /** Times that a task of the process stopped running as it blocked, e.g. to wait for I/O or a lock */
+        @Unsigned
+        public long voluntarySwitches;
+        /** Times that a task of the process stopped running while it was still runnable, i.e. it was preempted */
+        @Unsigned
+        public long involuntarySwitches;
+        /** Involuntary switches as the slice of the task ran out (or the task yielded) */
+        @Unsigned
+        public long sliceExhaustions;
+        /** Sum of the slices that the tasks of the process got when they started running */
+        @Unsigned
+        public long assignedSliceNs;
+        /** Time that the tasks ran of their {@link #assignedSliceNs}, measured per slice */
+        @Unsigned
+        public long usedSliceNs;
+        /** Is the process boosted, as it is one of the filtered processes? */
+        public boolean boosted;
         boolean currentlyRunning;
         @Unsigned
         long lastStartNs;
@@ -46,19 +105,692 @@ public interface BaseScheduler extends Scheduler, AutoCloseable {
 
         @Override
         public String toString() {
-            return "Stat{" + comm + ", runtime " + nanoSecondsToString(runtimeNs, 3) + ", dispatches " + dispatches + (currentlyRunning ? ", running" : "") + (ignored ? ", ignored" : "") + "}";
+            return "Stat{" + comm + ", runtime " + nanoSecondsToString(runtimeNs, 3) + ", dispatches " + dispatches + ", max wait " + nanoSecondsToString(maxWaitNs, 3) + ", switches " + voluntarySwitches + "/" + involuntarySwitches + (boosted ? ", boosted" : "") + (currentlyRunning ? ", running" : "") + (ignored ? ", ignored" : "") + "}";
         }
     }
 
+    /**
+     * Maximum number of CPUs that get their own dispatch queue
+     */
+    static final int MAX_CPUS = 512;
+
+    /** Queue for the tasks that can run on every CPU */
+    static final int SHARED_DSQ_ID = 0;
+    /** Queue for the tasks of the filtered processes when boosting */
+    static final int BOOST_DSQ_ID = 1;
+    /** Id of the queue of CPU 0 for tasks that can't run everywhere, the queues of the other CPUs follow */
+    static final int CPU_DSQ_BASE = 1024;
+
+    /**
+     * Runtime after which the recent runtimes of a CPU are halved, the boost share is computed over roughly this window
+     */
+    static final long BOOST_WINDOW_NS = 100_000_000L;
+
+    /**
+     * Per CPU statistics, only written by the CPU itself
+     */
+    @Type
+    class CpuStat {
+        /** Tasks of the shared queue looked at in dispatch */
+        @Unsigned
+        public long scanSteps;
+        /** Tasks of the shared queue looked at in dispatch without being dispatched */
+        @Unsigned
+        public long wastedScanSteps;
+        /** Last time the CPU looked at the shared queue */
+        @Unsigned
+        long lastSharedScanNs;
+        /** Runtime of all tasks on this CPU, halved every {@link #BOOST_WINDOW_NS} */
+        @Unsigned
+        long recentRuntimeNs;
+        /** Runtime of the boosted tasks on this CPU, halved with {@link #recentRuntimeNs} */
+        @Unsigned
+        long recentBoostedRuntimeNs;
+        /** Runtime of the tasks with a latency budget (EDF scheduler) on this CPU, halved with {@link #recentRuntimeNs} */
+        @Unsigned
+        long recentDeadlineRuntimeNs;
+        /** Slice events that were dropped, as the ring buffer was full */
+        @Unsigned
+        public long droppedSliceEvents;
+        /** Start of the slice of the task that currently runs on this CPU */
+        @Unsigned
+        long sliceStartNs;
+        /** Slice that the task that currently runs on this CPU got when it started */
+        @Unsigned
+        long sliceLengthNs;
+        /** End of the last slice on this CPU, the CPU is idle if this is after {@link #sliceStartNs} */
+        @Unsigned
+        long lastStopNs;
+        /** Time that tasks ran on this CPU */
+        @Unsigned
+        public long busyNs;
+        /** Time between the slices on this CPU, in which it was idle or ran tasks of other scheduling classes */
+        @Unsigned
+        public long idleNs;
+        /** Tasks in the queue of this CPU at the last sample, sampled in every dispatch and tick */
+        @Unsigned
+        public long localQueued;
+        /** Tasks in the shared queue at the last sample of this CPU */
+        @Unsigned
+        public long sharedQueued;
+        /** Tasks in the boost queue at the last sample of this CPU */
+        @Unsigned
+        public long boostQueued;
+        /** Time of the last sample of the queue depths */
+        @Unsigned
+        public long queueSampleNs;
+        /**
+         * Tasks that started running on this CPU by their wait since being enqueued,
+         * see {@link BaseScheduler#waitBucket}
+         */
+        @Size(WAIT_BUCKETS)
+        public long[] waitHistogram;
+
+        @Override
+        public String toString() {
+            return "CpuStat{scan steps " + scanSteps + ", wasted " + wastedScanSteps + "}";
+        }
+    }
+
+    /**
+     * A slice that a task ran on a CPU, sent to userspace when tracing
+     */
+    @Type
+    class SliceEvent {
+        @Unsigned
+        public int cpu;
+        @Unsigned
+        public int pid;
+        @Unsigned
+        public int tgid;
+        @Unsigned
+        public long startNs;
+        @Unsigned
+        public long endNs;
+        /** Was the task still runnable at the end, i.e. preempted or its slice ran out, instead of blocking? */
+        public boolean preempted;
+        @Size(COMM_LENGTH)
+        public String comm;
+    }
+
     @BPFFunction
     default boolean hasConstraints(Ptr<TaskDefinitions.task_struct> p) {
         return ((p.val().flags & PF_KTHREAD) != 0) || (p.val().nr_cpus_allowed != scx_bpf_nr_cpu_ids());
     }
 
-    void setSetting(SchedulerSetting setting);
+    /**
+     * CPU whose queue a constrained task is put into, -1 if the task has to go into the shared queue
+     * <p>
+     * Tasks that can run on multiple CPUs go to the CPU they last ran on if it is idle, else to any idle CPU
+     * they may run on, so that they don't wait for a busy CPU while another is idle. The chosen CPU is no longer
+     * marked idle and has to be kicked after the insert. Without an idle CPU, they go to the CPU they last ran on.
+     */
+    @BPFFunction
+    default int getConstrainedCpu(Ptr<TaskDefinitions.task_struct> p) {
+        int cpu = scx_bpf_task_cpu(p);
+        boolean lastCpuAllowed = cpu >= 0 && cpu < MAX_CPUS && bpf_cpumask_test_cpu(cpu, p.val().cpus_ptr);
+        if (p.val().nr_cpus_allowed > 1 && !(lastCpuAllowed && scx_bpf_test_and_clear_cpu_idle(cpu))) {
+            int idleCpu = scx_bpf_pick_idle_cpu(p.val().cpus_ptr, 0);
+            if (idleCpu >= 0 && idleCpu < MAX_CPUS) {
+                return idleCpu;
+            }
+        }
+        return lastCpuAllowed ? cpu : -1;
+    }
+
+    /**
+     * Can tasks that could run on every CPU run on this CPU, or is it reserved for the constrained tasks?
+     *
+     * @param cores number of cores from the setting, -1 for all cores
+     */
+    @BPFFunction
+    default boolean canRunUnconstrainedTasks(@Unsigned int cores, int cpu) {
+        return cores == -1 || cores > cpu;
+    }
+
+    /** Create the shared, the boost and the per CPU queues, which all schedulers use, 0 on success */
+    @BPFFunction
+    default int createQueues() {
+        int ret = scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+        if (ret == 0) {
+            ret = scx_bpf_create_dsq(BOOST_DSQ_ID, -1);
+        }
+        for (int cpu = 0; cpu < MAX_CPUS && cpu < scx_bpf_nr_cpu_ids() && ret == 0; cpu++) {
+            ret = scx_bpf_create_dsq(CPU_DSQ_BASE + cpu, -1);
+        }
+        return ret;
+    }
+
+    /** Move the task of the queue that is iterated to the CPU, if the task can run on it */
+    @BPFFunction
+    default boolean tryDispatching(Ptr<BpfDefinitions.bpf_iter_scx_dsq> iter, Ptr<TaskDefinitions.task_struct> p,
+                                   int cpu) {
+        // check if the CPU is usable by the task
+        if (!bpf_cpumask_test_cpu(cpu, p.val().cpus_ptr)) {
+            return false;
+        }
+        return scx_bpf_dsq_move(iter, p, SCX_DSQ_LOCAL_ON.value() | cpu, SCX_ENQ_PREEMPT.value());
+    }
+
+    /**
+     * Initialize the stat of a process or thread that the scheduler sees for the first time
+     */
+    @BPFFunction
+    default void initTaskStat(Ptr<TaskDefinitions.task_struct> task, Ptr<TaskStat> stat) {
+        stat.val().runtimeNs = 0;
+        stat.val().currentlyRunning = false;
+        stat.val().dispatches = 0;
+        stat.val().maxWaitNs = 0;
+        stat.val().waitNs = 0;
+        stat.val().boosted = false;
+        stat.val().ignored = hasConstraints(task);
+        BPFJ.bpf_probe_read_kernel_str(stat.val().comm, task.val().comm);
+    }
+
+    /** Key of the thread stats, tgid (upper 32 bits) and pid */
+    @BPFFunction
+    default @Unsigned long threadStatKey(Ptr<TaskDefinitions.task_struct> task) {
+        return ((long) task.val().tgid << 32) | task.val().pid;
+    }
+
+    /**
+     * Is the process part of the filter?
+     *
+     * @param filtered entry of the process in the filtered processes, null if there is none
+     */
+    @BPFFunction
+    default boolean isFiltered(Ptr<Boolean> filtered) {
+        return filtered != null && filtered.val();
+    }
+
+    /**
+     * Are the tasks of the process boosted, as boosting is enabled and the process is filtered?
+     *
+     * @param filtered entry of the process in the filtered processes, null if there is none
+     */
+    @BPFFunction
+    @AlwaysInline
+    default boolean isBoosted(SchedulerSetting setting, Ptr<Boolean> filtered) {
+        return setting.boostShare() != 0 && isFiltered(filtered);
+    }
+
+    /**
+     * Are the stats of the threads of the process kept?
+     *
+     * @param filtered entry of the process in the filtered processes, null if there is none
+     */
+    @BPFFunction
+    @AlwaysInline
+    default boolean isAccountingThreads(SchedulerSetting setting, Ptr<Boolean> filtered) {
+        return setting.threadStats() && isFiltered(filtered);
+    }
+
+    /**
+     * Time that a task waits since it has been enqueued
+     *
+     * @param enqueuedAt entry of the task in the enqueue times, null or 0 if it isn't waiting
+     */
+    @BPFFunction
+    default @Unsigned long getWaitNs(Ptr<@Unsigned Long> enqueuedAt, @Unsigned long now) {
+        if (enqueuedAt == null || enqueuedAt.val() == 0 || enqueuedAt.val() > now) {
+            return 0;
+        }
+        return now - enqueuedAt.val();
+    }
+
+    /**
+     * Slice length for a task that is inserted into the queue, see {@link #computeSliceLength}
+     */
+    @BPFFunction
+    @AlwaysInline
+    default @Unsigned long getSliceLength(Ptr<TaskDefinitions.task_struct> p, SchedulerSetting setting, int dsqId) {
+        return computeSliceLength(p, setting.sliceLength(), setting.minSliceLength(), setting.scaleSliceLength(),
+                scx_bpf_dsq_nr_queued(dsqId));
+    }
+
+    /**
+     * Slice length for a task
+     * <p>
+     * Without scaling, this is the configured slice length. With scaling, the configured slice length is the
+     * target latency, which is divided by the number of runnable tasks and scaled by the weight of the task
+     * (100 is the default weight). The result is bounded by the minimum and the configured slice length.
+     *
+     * @param queued number of tasks in the queue that the task is inserted into
+     */
+    @BPFFunction
+    default @Unsigned long computeSliceLength(Ptr<TaskDefinitions.task_struct> p, @Unsigned int sliceLength,
+                                              @Unsigned int minSliceLength, boolean scale, @Unsigned long queued) {
+        if (!scale) {
+            return sliceLength;
+        }
+        // the task itself is runnable too, so we never divide by zero
+        @Unsigned long slice = sliceLength / (queued + 1) * p.val().scx.weight / 100;
+        if (slice < minSliceLength) {
+            slice = minSliceLength;
+        }
+        if (slice > sliceLength) {
+            slice = sliceLength;
+        }
+        return slice;
+    }
+
+    /**
+     * Is a task that waited for the passed time starving?
+     *
+     * @param starvationThreshold threshold from the setting, 0 means that no task is starving
+     */
+    @BPFFunction
+    default boolean isStarving(@Unsigned long waitNs, @Unsigned int starvationThreshold) {
+        return starvationThreshold != 0 && waitNs >= starvationThreshold;
+    }
+
+    /**
+     * Fill the event of the slice that ends on the CPU
+     *
+     * @param preempted was the task still runnable at the end
+     */
+    @BPFFunction
+    default void fillSliceEvent(Ptr<SliceEvent> event, Ptr<TaskDefinitions.task_struct> p, int cpu,
+                                Ptr<CpuStat> cpuStat, boolean preempted) {
+        event.val().cpu = cpu;
+        event.val().pid = p.val().pid;
+        event.val().tgid = p.val().tgid;
+        event.val().startNs = cpuStat.val().sliceStartNs;
+        event.val().endNs = bpf_ktime_get_ns();
+        event.val().preempted = preempted;
+        BPFJ.bpf_probe_read_kernel_str(event.val().comm, p.val().comm);
+    }
+
+    /**
+     * Record that the CPU looked at a task of the shared queue in dispatch
+     *
+     * @param wasted the task wasn't dispatched
+     */
+    @BPFFunction
+    default void recordScanStep(Ptr<CpuStat> cpuStat, boolean wasted) {
+        if (cpuStat != null) {
+            cpuStat.val().scanSteps += 1;
+            if (wasted) {
+                cpuStat.val().wastedScanSteps += 1;
+            }
+        }
+    }
+
+    /** Sample the depths of the queues that this CPU sees into its stats */
+    @BPFFunction
+    default void sampleQueueDepths(Ptr<CpuStat> cpuStat, int cpu) {
+        if (cpuStat == null) {
+            return;
+        }
+        cpuStat.val().localQueued = cpu < MAX_CPUS ? scx_bpf_dsq_nr_queued(CPU_DSQ_BASE + cpu) : 0;
+        cpuStat.val().sharedQueued = scx_bpf_dsq_nr_queued(SHARED_DSQ_ID);
+        cpuStat.val().boostQueued = scx_bpf_dsq_nr_queued(BOOST_DSQ_ID);
+        cpuStat.val().queueSampleNs = bpf_ktime_get_ns();
+    }
+
+    /**
+     * Should the current slice be traced?
+     *
+     * @param sampleRate trace every n-th slice on average, 0 disables tracing
+     */
+    @BPFFunction
+    default boolean isTraceSampled(@Unsigned int sampleRate) {
+        return sampleRate == 1 || (sampleRate > 1 && bpf_get_prandom_u32() % sampleRate == 0);
+    }
+
+    /**
+     * Should the slice of the task that ends be traced, by the sample rate and the filter of the setting?
+     *
+     * @param filtered entry of the process of the task in the filtered processes
+     */
+    @BPFFunction
+    default boolean isSliceTraced(SchedulerSetting setting, Ptr<Boolean> filtered) {
+        return isTraceSampled(setting.traceSampleRate()) && (!setting.traceFilteredOnly() || isFiltered(filtered));
+    }
+
+    /**
+     * Did the boosted tasks on this CPU get less than their share of CPU time recently?
+     */
+    @BPFFunction
+    default boolean isWithinBoostShare(Ptr<CpuStat> cpuStat, @Unsigned int boostShare) {
+        return cpuStat == null || cpuStat.val().recentBoostedRuntimeNs * 100 <= cpuStat.val().recentRuntimeNs * boostShare;
+    }
+
+    /**
+     * Did the tasks with a latency budget on this CPU get less than their share of CPU time recently?
+     */
+    @BPFFunction
+    default boolean isWithinDeadlineShare(Ptr<CpuStat> cpuStat, @Unsigned int deadlineShare) {
+        return cpuStat == null || cpuStat.val().recentDeadlineRuntimeNs * 100 <= cpuStat.val().recentRuntimeNs * deadlineShare;
+    }
+
+    /**
+     * Account the runtime of a task to the CPU it ran on
+     */
+    @BPFFunction
+    default void accountCpuRuntime(Ptr<CpuStat> cpuStat, @Unsigned long runtimeNs, boolean boosted) {
+        if (cpuStat == null) {
+            return;
+        }
+        cpuStat.val().recentRuntimeNs += runtimeNs;
+        if (boosted) {
+            cpuStat.val().recentBoostedRuntimeNs += runtimeNs;
+        }
+        if (cpuStat.val().recentRuntimeNs > BOOST_WINDOW_NS) {
+            cpuStat.val().recentRuntimeNs /= 2;
+            cpuStat.val().recentBoostedRuntimeNs /= 2;
+            cpuStat.val().recentDeadlineRuntimeNs /= 2;
+        }
+    }
+
+    /**
+     * Bucket of the wait histogram: 0 for waits below {@link #WAIT_HISTOGRAM_FIRST_NS},
+     * then one bucket per doubling of the wait
+     */
+    @BPFFunction
+    default int waitBucket(@Unsigned long waitNs) {
+        int bucket = 0;
+        @Unsigned long bound = WAIT_HISTOGRAM_FIRST_NS;
+        while (bucket < WAIT_BUCKETS - 1 && waitNs >= bound) {
+            bucket++;
+            bound *= 2;
+        }
+        return bucket;
+    }
+
+    /**
+     * Count the wait of a task that starts running on the CPU in its wait histogram
+     */
+    @BPFFunction
+    default void accountWait(Ptr<CpuStat> cpuStat, @Unsigned long waitNs) {
+        if (cpuStat == null) {
+            return;
+        }
+        cpuStat.val().waitHistogram[waitBucket(waitNs)] += 1;
+    }
+
+    /**
+     * Start the slice of a task on the CPU, the time since the last slice ended is idle time
+     */
+    @BPFFunction
+    default void startSlice(Ptr<TaskDefinitions.task_struct> p, Ptr<CpuStat> cpuStat, @Unsigned long now) {
+        if (cpuStat == null) {
+            return;
+        }
+        if (cpuStat.val().lastStopNs != 0) {
+            cpuStat.val().idleNs += now - cpuStat.val().lastStopNs;
+        }
+        cpuStat.val().sliceStartNs = now;
+        cpuStat.val().sliceLengthNs = p.val().scx.slice;
+    }
+
+    /**
+     * Count how the slice of a task ended in the stats of its process or thread: voluntarily, as the task blocked,
+     * or involuntarily, as it was preempted or its slice ran out
+     *
+     * @param usedNs   time the task ran in the slice
+     * @param runnable is the task still runnable, as passed to stopping
+     */
+    @BPFFunction
+    default void accountSwitch(Ptr<TaskDefinitions.task_struct> p, Ptr<TaskStat> stat, Ptr<CpuStat> cpuStat,
+                               @Unsigned long usedNs, boolean runnable) {
+        if (runnable) {
+            stat.val().involuntarySwitches += 1;
+            // the kernel decrements the slice while the task runs
+            if (p.val().scx.slice == 0) {
+                stat.val().sliceExhaustions += 1;
+            }
+        } else {
+            stat.val().voluntarySwitches += 1;
+        }
+        stat.val().assignedSliceNs += cpuStat.val().sliceLengthNs;
+        stat.val().usedSliceNs += usedNs;
+    }
+
+    /**
+     * Account how the slice of a task ended in the stats of its process, see {@link #accountSwitch},
+     * and the busy time of the CPU
+     *
+     * @param runnable is the task still runnable, as passed to stopping
+     */
+    @BPFFunction
+    default void accountSliceEnd(Ptr<TaskDefinitions.task_struct> p, Ptr<TaskStat> stat, Ptr<CpuStat> cpuStat,
+                                 boolean runnable) {
+        if (cpuStat == null) {
+            return;
+        }
+        @Unsigned long now = bpf_ktime_get_ns();
+        @Unsigned long usedNs = now - cpuStat.val().sliceStartNs;
+        cpuStat.val().busyNs += usedNs;
+        cpuStat.val().lastStopNs = now;
+        if (stat != null) {
+            accountSwitch(p, stat, cpuStat, usedNs, runnable);
+        }
+    }
+
+    /**
+     * Start the slice of a task in the stats of its process or thread
+     *
+     * @param stat null if there are no stats
+     */
+    @BPFFunction
+    default void accountStart(Ptr<TaskStat> stat, @Unsigned long now, @Unsigned long waitNs) {
+        if (stat == null) {
+            return;
+        }
+        stat.val().currentlyRunning = true;
+        stat.val().dispatches += 1;
+        stat.val().lastStartNs = now;
+        if (waitNs > stat.val().maxWaitNs) {
+            stat.val().maxWaitNs = waitNs;
+        }
+        stat.val().waitNs += waitNs;
+    }
+
+    /**
+     * End the slice of a thread in its stats, before {@link #accountSliceEnd} ends it on the CPU
+     *
+     * @param threadStat null if the thread has no stats
+     */
+    @BPFFunction
+    default void accountThreadEnd(Ptr<TaskDefinitions.task_struct> p, Ptr<TaskStat> threadStat, Ptr<CpuStat> cpuStat,
+                                  boolean runnable) {
+        if (threadStat == null || cpuStat == null) {
+            return;
+        }
+        @Unsigned long now = bpf_ktime_get_ns();
+        threadStat.val().currentlyRunning = false;
+        threadStat.val().runtimeNs += now - threadStat.val().lastStartNs;
+        accountSwitch(p, threadStat, cpuStat, now - cpuStat.val().sliceStartNs, runnable);
+    }
+
+    /**
+     * Account the start of a slice in the stats of the process, the thread and the CPU, in running
+     *
+     * @param stat       null if the process has no stats
+     * @param threadStat null if the thread has no stats
+     * @param boosted    is the process boosted, from now on its runtime counts to the boost share
+     */
+    @BPFFunction
+    default void accountRunning(Ptr<TaskDefinitions.task_struct> p, Ptr<TaskStat> stat, Ptr<TaskStat> threadStat,
+                                Ptr<CpuStat> cpuStat, @Unsigned long now, @Unsigned long waitNs, boolean boosted) {
+        accountStart(stat, now, waitNs);
+        if (stat != null) {
+            stat.val().boosted = boosted;
+        }
+        accountStart(threadStat, now, waitNs);
+        accountWait(cpuStat, waitNs);
+        startSlice(p, cpuStat, now);
+    }
+
+    /**
+     * Account the end of a slice in the stats of the thread, the process and the CPU, in stopping
+     *
+     * @param runnable is the task still runnable, as passed to stopping
+     * @param deadline does the runtime count to the deadline share
+     * @return runtime of the slice, 0 if the process has no stats
+     */
+    @BPFFunction
+    default @Unsigned long accountStopping(Ptr<TaskDefinitions.task_struct> p, Ptr<TaskStat> stat,
+                                           Ptr<TaskStat> threadStat, Ptr<CpuStat> cpuStat, boolean runnable,
+                                           boolean deadline) {
+        accountThreadEnd(p, threadStat, cpuStat, runnable);
+        accountSliceEnd(p, stat, cpuStat, runnable);
+        if (stat == null) {
+            return 0;
+        }
+        stat.val().currentlyRunning = false;
+        @Unsigned long runtimeNs = bpf_ktime_get_ns() - stat.val().lastStartNs;
+        stat.val().runtimeNs += runtimeNs;
+        if (deadline && cpuStat != null) {
+            cpuStat.val().recentDeadlineRuntimeNs += runtimeNs;
+        }
+        accountCpuRuntime(cpuStat, runtimeNs, stat.val().boosted);
+        return runtimeNs;
+    }
 
     BPFHashMap<@Unsigned Integer, TaskStat> getTaskStats();
 
+    @Override
+    default Set<Map.Entry<Integer, TaskStat>> getTaskStatEntries() {
+        return getTaskStats().entrySet();
+    }
+
+    /**
+     * Stats of the threads of the filtered processes, if enabled in the setting, by tgid (upper 32 bits) and pid
+     */
+    BPFHashMap<@Unsigned Long, TaskStat> getThreadStats();
+
+    @Override
+    default Set<Map.Entry<Long, TaskStat>> getThreadStatEntries() {
+        return getThreadStats().entrySet();
+    }
+
+    @Override
+    default void importTaskStats(TaskStatsSnapshot stats) {
+        var taskStats = getTaskStats();
+        stats.tasks().forEach((tgid, stat) -> {
+            stat.currentlyRunning = false;
+            taskStats.put(tgid, stat);
+        });
+        var threadStats = getThreadStats();
+        stats.threads().forEach((id, stat) -> {
+            stat.currentlyRunning = false;
+            threadStats.put(id, stat);
+        });
+    }
+
+    BPFArray<CpuStat> getCpuStats();
+
+    /** Slices of the tasks, if tracing is enabled in the setting */
+    BPFRingBuffer<SliceEvent> getSliceEvents();
+
+    /**
+     * Processes (by tgid) that are part of the filter, set to false when they are removed from the filter
+     */
+    BPFHashMap<@Unsigned Integer, Boolean> getFilteredProcesses();
+
+    /** Mirror the filtered processes to the BPF map */
+    @Override
+    default void updateFilteredProcesses(Set<Integer> previous, Set<Integer> current) {
+        var filteredProcesses = getFilteredProcesses();
+        for (int pid : previous) {
+            if (!current.contains(pid)) {
+                filteredProcesses.put(pid, false);
+            }
+        }
+        for (int pid : current) {
+            if (!previous.contains(pid)) {
+                filteredProcesses.put(pid, true);
+            }
+        }
+    }
+
+    @Override
+    default long getWastedScanSteps() {
+        var cpuStats = getCpuStats();
+        long sum = 0;
+        for (int cpu = 0; cpu < Math.min(MAX_CPUS, Runtime.getRuntime().availableProcessors()); cpu++) {
+            sum += cpuStats.get(cpu).wastedScanSteps;
+        }
+        return sum;
+    }
+
+    /**
+     * Load of the CPUs at a point in time, the times are cumulative since the start of the scheduler
+     *
+     * @param timestampNs  time of the sample, like {@link System#nanoTime()}
+     * @param busyNs       time that tasks ran, per CPU
+     * @param idleNs       time between the slices, per CPU
+     * @param localQueued  tasks in the queue of each CPU
+     * @param sharedQueued tasks in the shared queue
+     * @param boostQueued  tasks in the boost queue
+     * @param waitHistogram tasks that started running by their wait, summed over the CPUs
+     */
+    record LoadSample(long timestampNs, long[] busyNs, long[] idleNs, long[] localQueued, long sharedQueued,
+                      long boostQueued, long[] waitHistogram) {
+
+        public int cpus() {
+            return busyNs.length;
+        }
+    }
+
+    @Override
+    default LoadSample sampleLoad() {
+        var cpuStats = getCpuStats();
+        int cpus = Math.min(MAX_CPUS, Runtime.getRuntime().availableProcessors());
+        // bpf_ktime_get_ns uses the same monotonic clock
+        long now = System.nanoTime();
+        long[] busyNs = new long[cpus];
+        long[] idleNs = new long[cpus];
+        long[] localQueued = new long[cpus];
+        long sharedQueued = 0;
+        long boostQueued = 0;
+        long lastQueueSampleNs = 0;
+        long[] waitHistogram = new long[WAIT_BUCKETS];
+        for (int cpu = 0; cpu < cpus; cpu++) {
+            var stat = cpuStats.get(cpu);
+            for (int bucket = 0; bucket < WAIT_BUCKETS; bucket++) {
+                waitHistogram[bucket] += stat.waitHistogram[bucket];
+            }
+            busyNs[cpu] = stat.busyNs;
+            idleNs[cpu] = stat.idleNs;
+            if (stat.lastStopNs >= stat.sliceStartNs) {
+                idleNs[cpu] += stat.lastStopNs == 0 ? 0 : Math.max(0, now - stat.lastStopNs);
+            } else {
+                busyNs[cpu] += Math.max(0, now - stat.sliceStartNs);
+            }
+            localQueued[cpu] = stat.localQueued;
+            // the global queues are sampled by every CPU, the newest sample wins
+            if (stat.queueSampleNs > lastQueueSampleNs) {
+                lastQueueSampleNs = stat.queueSampleNs;
+                sharedQueued = stat.sharedQueued;
+                boostQueued = stat.boostQueued;
+            }
+        }
+        return new LoadSample(now, busyNs, idleNs, localQueued, sharedQueued, boostQueued, waitHistogram);
+    }
+
+    @Override
+    default long getDroppedSliceEvents() {
+        var cpuStats = getCpuStats();
+        long sum = 0;
+        for (int cpu = 0; cpu < Math.min(MAX_CPUS, Runtime.getRuntime().availableProcessors()); cpu++) {
+            sum += cpuStats.get(cpu).droppedSliceEvents;
+        }
+        return sum;
+    }
+
+    @Override
+    default void attachScheduler() {
+        Scheduler.super.attachScheduler();
+    }
+
+    @Override
+    default boolean isSchedulerAttachedProperly() {
+        return Scheduler.super.isSchedulerAttachedProperly();
+    }
+
     default void tracePrintLoop() {
         if (this instanceof BPFProgram program) {
             program.tracePrintLoop();
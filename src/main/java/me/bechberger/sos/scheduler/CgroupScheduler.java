@@ -0,0 +1,517 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.runtime.CgroupDefinitions;
+import me.bechberger.ebpf.runtime.ScxDefinitions;
+import me.bechberger.ebpf.runtime.TaskDefinitions;
+import me.bechberger.ebpf.type.Ptr;
+
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cgroup_release;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_kick_flags.SCX_KICK_IDLE;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_smp_processor_id;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_ktime_get_ns;
+import static me.bechberger.sos.util.DurationConverter.nanoSecondsToString;
+
+/**
+ * Two-level fair-share scheduler: CPU time is shared fairly between cgroups according to their weight
+ * and then between the tasks of each cgroup according to theirs.
+ * <p>
+ * Every cgroup has its own vtime ordered queue and its own vtime, which its tasks advance by their runtime divided
+ * by the weight of the cgroup. Dispatching takes the cgroup with the smallest vtime first and then the task with the
+ * smallest vtime in its queue, the vtimes of the tasks are relative to the other tasks of their cgroup.
+ * <p>
+ * The nesting of the cgroups isn't compounded: every cgroup competes with its own cpu.weight against all other
+ * cgroups with runnable tasks, regardless of its parent. Only {@link #MAX_CGROUP_QUEUES} cgroups get a queue
+ * of their own, further cgroups share the queues, which bounds the cost of picking the cgroup in the dispatch.
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "cgroup_soc_scheduler")
+public abstract class CgroupScheduler extends BPFProgram implements BaseScheduler {
+
+    /** Weight of cgroups that the scheduler hasn't seen initialized */
+    private static final int DEFAULT_WEIGHT = 100;
+
+    /** Number of cgroups with a queue of their own */
+    static final int MAX_CGROUP_QUEUES = 64;
+
+    /** Id of the first cgroup queue, the others follow */
+    private static final int CGROUP_DSQ_BASE = CPU_DSQ_BASE + MAX_CPUS;
+
+    final GlobalVariable<SchedulerSetting> schedulerSetting = new GlobalVariable<>(new SchedulerSetting(1,1, true, 1, 0, 0, 0, false, false));
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, TaskStat> taskStats;
+
+    /** Stats of the threads of the filtered processes by tgid (upper 32 bits) and pid, if enabled in the setting */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Long, TaskStat> threadStats;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<CpuStat> cpuStats;
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, Boolean> filteredProcesses;
+
+    /**
+     * Statistics and scheduling state of a cgroup
+     */
+    @Type
+    public static class CgroupStat {
+        /** cpu.weight of the cgroup */
+        @Unsigned
+        public int weight;
+        /** Index of the queue of the cgroup in the cgroup queues */
+        @Unsigned
+        public int queue;
+        @Unsigned
+        public int runnableTasks;
+        @Unsigned
+        public long dispatches;
+        @Unsigned
+        public long runtimeNs;
+
+        @Override
+        public String toString() {
+            return "CgroupStat{weight " + weight + ", runnable " + runnableTasks + ", runtime " +
+                    nanoSecondsToString(runtimeNs, 3) + ", dispatches " + dispatches + "}";
+        }
+    }
+
+    /** Stats of the cgroups by the id of the cgroup */
+    @BPFMapDefinition(maxEntries = 10000)
+    BPFLRUHashMap<@Unsigned Long, CgroupStat> cgroupStats;
+
+    /**
+     * Owner and vtimes of a cgroup queue
+     */
+    @Type
+    public static class CgroupQueue {
+        /** Id of the cgroup that owns the queue, 0 if it is free */
+        @Unsigned
+        public long cgroupId;
+        /** Runtime of the tasks of the cgroup divided by the weight of the cgroup */
+        @Unsigned
+        public long vtime;
+        /** vtime of the task of the cgroup that started running last */
+        @Unsigned
+        public long taskVtimeNow;
+    }
+
+    @BPFMapDefinition(maxEntries = MAX_CGROUP_QUEUES)
+    BPFArray<CgroupQueue> cgroupQueues;
+
+    /** Cgroup queue whose task vtimes the vtime of a task (by pid) is relative to */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Integer> taskQueues;
+
+    @BPFMapDefinition(maxEntries = 256 * 4096)
+    BPFRingBuffer<SliceEvent> sliceEvents;
+
+    /** Time a task (by pid) was last enqueued at, 0 if it ran since */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueuedAt;
+
+    @BPFFunction
+    @AlwaysInline
+    void getTaskStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
+        var id = task.val().tgid;
+        var ret = taskStats.bpf_get(id);
+        if (ret == null) {
+            var stat = new TaskStat();
+            initTaskStat(task, Ptr.of(stat));
+            taskStats.put(id, stat);
+        }
+        var ret2 = taskStats.bpf_get(id);
+        statPtr.set(ret2);
+    }
+
+    /** Stats of the thread if enabled in the setting and its process is filtered, null otherwise */
+    @BPFFunction
+    @AlwaysInline
+    void getThreadStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
+        Ptr<TaskStat> ret = null;
+        if (isAccountingThreads(schedulerSetting.get(), filteredProcesses.bpf_get(task.val().tgid))) {
+            @Unsigned long id = threadStatKey(task);
+            ret = threadStats.bpf_get(id);
+            if (ret == null) {
+                var stat = new TaskStat();
+                initTaskStat(task, Ptr.of(stat));
+                threadStats.put(id, stat);
+                ret = threadStats.bpf_get(id);
+            }
+        }
+        statPtr.set(ret);
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    @Unsigned long getCgroupId(Ptr<TaskDefinitions.task_struct> p) {
+        Ptr<CgroupDefinitions.cgroup> cgrp = scx_bpf_task_cgroup(p);
+        @Unsigned long id = cgrp.val().kn.val().id;
+        bpf_cgroup_release(cgrp);
+        return id;
+    }
+
+    /** vtime of the cgroup that started running last */
+    final GlobalVariable<@Unsigned Long> cgroup_vtime_now = new GlobalVariable<>(0L);
+
+    @BPFFunction
+    @AlwaysInline
+    boolean isSmaller(@Unsigned long a, @Unsigned long b) {
+        return (long)(a - b) < 0;
+    }
+
+    /**
+     * Index of a free cgroup queue that is now owned by the cgroup, if all are owned, the cgroup shares
+     * the queue given by its id
+     */
+    @BPFFunction
+    @AlwaysInline
+    @Unsigned int claimCgroupQueue(@Unsigned long id) {
+        for (int i = 0; i < MAX_CGROUP_QUEUES; i++) {
+            Ptr<CgroupQueue> queue = cgroupQueues.bpf_get(i);
+            // racy if two cgroups are seen for the first time concurrently, they then just share the queue
+            if (queue != null && queue.val().cgroupId == 0) {
+                queue.val().cgroupId = id;
+                queue.val().vtime = cgroup_vtime_now.get();
+                return i;
+            }
+        }
+        return (int) (id % MAX_CGROUP_QUEUES);
+    }
+
+    /** Index of the non-empty cgroup queue with the smallest vtime, -1 if all are empty */
+    @BPFFunction
+    @AlwaysInline
+    int pickCgroupQueue() {
+        int picked = -1;
+        @Unsigned long pickedVtime = 0;
+        for (int i = 0; i < MAX_CGROUP_QUEUES; i++) {
+            Ptr<CgroupQueue> queue = cgroupQueues.bpf_get(i);
+            if (queue != null && scx_bpf_dsq_nr_queued(CGROUP_DSQ_BASE + i) > 0
+                    && (picked == -1 || isSmaller(queue.val().vtime, pickedVtime))) {
+                picked = i;
+                pickedVtime = queue.val().vtime;
+            }
+        }
+        return picked;
+    }
+
+    /** The tasks in the cgroup queues count as queued in the shared queue */
+    @BPFFunction
+    @AlwaysInline
+    void sampleCgroupQueueDepths(Ptr<CpuStat> cpuStat) {
+        if (cpuStat == null) {
+            return;
+        }
+        for (int i = 0; i < MAX_CGROUP_QUEUES; i++) {
+            cpuStat.val().sharedQueued += scx_bpf_dsq_nr_queued(CGROUP_DSQ_BASE + i);
+        }
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    void getCgroupStat(@Unsigned long id, Ptr<Ptr<CgroupStat>> statPtr) {
+        var ret = cgroupStats.bpf_get(id);
+        if (ret == null) {
+            var stat = new CgroupStat();
+            stat.weight = DEFAULT_WEIGHT;
+            stat.queue = claimCgroupQueue(id);
+            stat.runnableTasks = 0;
+            stat.dispatches = 0;
+            stat.runtimeNs = 0;
+            cgroupStats.put(id, stat);
+        }
+        var ret2 = cgroupStats.bpf_get(id);
+        statPtr.set(ret2);
+    }
+
+    @Override
+    public int init() {
+        int ret = createQueues();
+        for (int i = 0; i < MAX_CGROUP_QUEUES && ret == 0; i++) {
+            ret = scx_bpf_create_dsq(CGROUP_DSQ_BASE + i, -1);
+        }
+        return ret;
+    }
+
+    @Override
+    public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        enqueuedAt.put(p.val().pid, bpf_ktime_get_ns());
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(getCgroupId(p), Ptr.of(cgroupStat));
+        @Unsigned int queueIndex = cgroupStat != null ? cgroupStat.val().queue : 0;
+        int dsqId = CGROUP_DSQ_BASE + queueIndex;
+        int cpu = -1;
+        if (hasConstraints(p)) {
+            dsqId = SHARED_DSQ_ID;
+            cpu = getConstrainedCpu(p);
+            if (cpu >= 0) {
+                dsqId = CPU_DSQ_BASE + cpu;
+            }
+        } else if (isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            dsqId = BOOST_DSQ_ID;
+        }
+        @Unsigned long sliceLength = getSliceLength(p, schedulerSetting.get(), dsqId);
+
+        @Unsigned long vtime = p.val().scx.dsq_vtime;
+        Ptr<CgroupQueue> queue = cgroupQueues.bpf_get(queueIndex);
+        if (queue != null) {
+            Ptr<@Unsigned Integer> taskQueue = taskQueues.bpf_get(p.val().pid);
+            if (taskQueue == null || taskQueue.val() != queueIndex) {
+                // the task moved from another cgroup, its vtime is relative to the tasks there
+                vtime = queue.val().taskVtimeNow;
+                taskQueues.put(p.val().pid, queueIndex);
+            }
+            /*
+             * Limit the amount of budget that an idling task or cgroup can accumulate
+             * to one slice.
+             */
+            @Unsigned long maxBudget = schedulerSetting.get().sliceLength();
+            if (isSmaller(vtime, queue.val().taskVtimeNow - maxBudget)) {
+                vtime = queue.val().taskVtimeNow - maxBudget;
+            }
+            if (isSmaller(queue.val().vtime, cgroup_vtime_now.get() - maxBudget)) {
+                queue.val().vtime = cgroup_vtime_now.get() - maxBudget;
+            }
+        }
+        scx_bpf_dsq_insert_vtime(p, dsqId, sliceLength, vtime, enq_flags);
+        if (cpu >= 0) {
+            scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE.value());
+        }
+    }
+
+    /** Send the slice that ends on the current CPU to the slice events, if it is sampled */
+    @BPFFunction
+    @AlwaysInline
+    void traceSlice(Ptr<TaskDefinitions.task_struct> p, boolean preempted) {
+        int cpu = bpf_get_smp_processor_id();
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        if (cpuStat == null || !isSliceTraced(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            return;
+        }
+        Ptr<SliceEvent> event = sliceEvents.reserve();
+        if (event == null) {
+            // userspace doesn't keep up
+            cpuStat.val().droppedSliceEvents += 1;
+            return;
+        }
+        fillSliceEvent(event, p, cpu, cpuStat, preempted);
+        sliceEvents.submit(event);
+    }
+
+    @Override
+    public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
+        sampleCgroupQueueDepths(cpuStats.bpf_get(cpu));
+        // tasks pinned to a CPU are in the queue of their CPU, which is therefore consumed first
+        if (cpu < MAX_CPUS && scx_bpf_dsq_move_to_local(CPU_DSQ_BASE + cpu)) {
+            return;
+        }
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        boolean canScheduleNonKThreads = canRunUnconstrainedTasks(schedulerSetting.get().cores(), cpu);
+        // boosted tasks come before the cgroups, as long as they don't exceed their share
+        if (canScheduleNonKThreads && isWithinBoostShare(cpuStat, schedulerSetting.get().boostShare())
+                && scx_bpf_dsq_move_to_local(BOOST_DSQ_ID)) {
+            return;
+        }
+        // the tasks in the cgroup queues have no constraints, so the first one can run on this CPU
+        int queueIndex = canScheduleNonKThreads ? pickCgroupQueue() : -1;
+        if (queueIndex >= 0 && scx_bpf_dsq_move_to_local(CGROUP_DSQ_BASE + queueIndex)) {
+            return;
+        }
+        // only constrained tasks without a CPU queue are left in the shared queue
+        Ptr<TaskDefinitions.task_struct> p = null;
+        bpf_for_each_dsq(SHARED_DSQ_ID, p, iter -> {
+            if ((hasConstraints(p) || canScheduleNonKThreads) && tryDispatching(iter, p, cpu)) {
+                recordScanStep(cpuStat, false);
+                return;
+            }
+            recordScanStep(cpuStat, true);
+        });
+        if (canScheduleNonKThreads) {
+            scx_bpf_dsq_move_to_local(BOOST_DSQ_ID);
+        }
+    }
+
+    @Override
+    public void runnable(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(getCgroupId(p), Ptr.of(cgroupStat));
+        if (cgroupStat != null) {
+            cgroupStat.val().runnableTasks += 1;
+        }
+    }
+
+    @Override
+    public void quiescent(Ptr<TaskDefinitions.task_struct> p, long deq_flags) {
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(getCgroupId(p), Ptr.of(cgroupStat));
+        if (cgroupStat != null && cgroupStat.val().runnableTasks > 0) {
+            cgroupStat.val().runnableTasks -= 1;
+        }
+    }
+
+    @Override
+    public int cgroupInit(Ptr<CgroupDefinitions.cgroup> cgrp, Ptr<ScxDefinitions.scx_cgroup_init_args> args) {
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(cgrp.val().kn.val().id, Ptr.of(cgroupStat));
+        if (cgroupStat != null) {
+            cgroupStat.val().weight = args.val().weight;
+        }
+        return 0;
+    }
+
+    @Override
+    public void cgroupSetWeight(Ptr<CgroupDefinitions.cgroup> cgrp, int weight) {
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(cgrp.val().kn.val().id, Ptr.of(cgroupStat));
+        if (cgroupStat != null) {
+            cgroupStat.val().weight = weight;
+        }
+    }
+
+    /** Free the queue of the cgroup for the next new cgroup */
+    @Override
+    public void cgroupExit(Ptr<CgroupDefinitions.cgroup> cgrp) {
+        @Unsigned long id = cgrp.val().kn.val().id;
+        Ptr<CgroupStat> cgroupStat = cgroupStats.bpf_get(id);
+        if (cgroupStat == null) {
+            return;
+        }
+        Ptr<CgroupQueue> queue = cgroupQueues.bpf_get(cgroupStat.val().queue);
+        if (queue != null && queue.val().cgroupId == id) {
+            queue.val().cgroupId = 0;
+        }
+        cgroupStats.bpf_delete(id);
+    }
+
+    /** Sample the queues regularly on busy CPUs too, which don't dispatch */
+    @Override
+    public void tick(Ptr<TaskDefinitions.task_struct> p) {
+        int cpu = bpf_get_smp_processor_id();
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
+        sampleCgroupQueueDepths(cpuStats.bpf_get(cpu));
+    }
+
+    @Override
+    public void running(Ptr<TaskDefinitions.task_struct> p) {
+        Ptr<TaskStat> stat = null;
+        getTaskStat(p, Ptr.of(stat));
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        @Unsigned long now = bpf_ktime_get_ns();
+        @Unsigned long waitNs = getWaitNs(enqueuedAt.bpf_get(p.val().pid), now);
+        enqueuedAt.put(p.val().pid, 0L);
+        accountRunning(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()), now, waitNs,
+                isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid)));
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(getCgroupId(p), Ptr.of(cgroupStat));
+        if (cgroupStat == null) {
+            return;
+        }
+        cgroupStat.val().dispatches += 1;
+        Ptr<CgroupQueue> queue = cgroupQueues.bpf_get(cgroupStat.val().queue);
+        if (queue == null) {
+            return;
+        }
+        /*
+         * The vtimes always progress forward as tasks start executing. The
+         * test and update can be performed concurrently from multiple CPUs and
+         * thus racy. Any error should be contained and temporary. Let's just
+         * live with it.
+         */
+        if (isSmaller(queue.val().taskVtimeNow, p.val().scx.dsq_vtime)) {
+            queue.val().taskVtimeNow = p.val().scx.dsq_vtime;
+        }
+        if (isSmaller(cgroup_vtime_now.get(), queue.val().vtime)) {
+            cgroup_vtime_now.set(queue.val().vtime);
+        }
+    }
+
+    @Override
+    public void stopping(Ptr<TaskDefinitions.task_struct> p, boolean runnable) {
+        traceSlice(p, runnable);
+        Ptr<TaskStat> stat = null;
+        getTaskStat(p, Ptr.of(stat));
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        @Unsigned long runtimeNs = accountStopping(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()),
+                runnable, false);
+
+        p.val().scx.dsq_vtime += runtimeNs / p.val().scx.weight;
+
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(getCgroupId(p), Ptr.of(cgroupStat));
+        if (cgroupStat == null) {
+            return;
+        }
+        cgroupStat.val().runtimeNs += runtimeNs;
+        // the cgroup is charged like a task with the weight of the cgroup
+        Ptr<CgroupQueue> queue = cgroupQueues.bpf_get(cgroupStat.val().queue);
+        if (queue != null && cgroupStat.val().weight > 0) {
+            queue.val().vtime += runtimeNs / cgroupStat.val().weight;
+        }
+    }
+
+    @Override
+    public void enable(Ptr<TaskDefinitions.task_struct> p) {
+        Ptr<CgroupStat> cgroupStat = null;
+        getCgroupStat(getCgroupId(p), Ptr.of(cgroupStat));
+        if (cgroupStat == null) {
+            return;
+        }
+        Ptr<CgroupQueue> queue = cgroupQueues.bpf_get(cgroupStat.val().queue);
+        if (queue != null) {
+            p.val().scx.dsq_vtime = queue.val().taskVtimeNow;
+            taskQueues.put(p.val().pid, cgroupStat.val().queue);
+        }
+    }
+
+    @Override
+    public void setSetting(SchedulerSetting setting) {
+        schedulerSetting.set(setting);
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Integer, TaskStat> getTaskStats() {
+        return taskStats;
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Long, TaskStat> getThreadStats() {
+        return threadStats;
+    }
+
+    @Override
+    public BPFArray<CpuStat> getCpuStats() {
+        return cpuStats;
+    }
+
+    @Override
+    public BPFRingBuffer<SliceEvent> getSliceEvents() {
+        return sliceEvents;
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Integer, Boolean> getFilteredProcesses() {
+        return filteredProcesses;
+    }
+
+    public BPFHashMap<@Unsigned Long, CgroupStat> getCgroupStats() {
+        return cgroupStats;
+    }
+}
\ No newline at end of file
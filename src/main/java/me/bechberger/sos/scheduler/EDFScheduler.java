@@ -0,0 +1,454 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.runtime.TaskDefinitions;
+import me.bechberger.ebpf.type.Ptr;
+
+import java.util.Map;
+
+import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_kick_flags.SCX_KICK_IDLE;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_smp_processor_id;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_ktime_get_ns;
+
+/**
+ * Earliest-deadline-first scheduler for latency-critical processes, the others share the remaining CPU time
+ * like in the {@link VTimeScheduler}
+ * <p>
+ * Processes with a latency budget (set by tgid via {@link #updateLatencyBudgets(Map, Map)}) have to run
+ * within their budget after their tasks became runnable. Their tasks are ordered by this deadline in their own
+ * queue, which is consumed before the best-effort tasks, and best-effort tasks are preempted at the next tick
+ * when deadline tasks are waiting. Missed deadlines are counted per process in the {@link DeadlineStat}s.
+ * <p>
+ * The processes with a budget get at most their share ({@link #setDeadlineShare(int)}) of the CPU time of every CPU
+ * before the best-effort tasks, like the boosted processes. Beyond it, their tasks are throttled: they are
+ * enqueued as best-effort tasks, so CPU-bound processes with a budget can't starve the others.
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "edf_soc_scheduler")
+public abstract class EDFScheduler extends BPFProgram implements BaseScheduler {
+
+    /** Queue for the tasks with a latency budget, ordered by their deadlines */
+    private static final int DEADLINE_DSQ_ID = 2;
+
+    /**
+     * Deadline statistics of a process with a latency budget
+     */
+    @Type
+    public static class DeadlineStat {
+        /** Current latency budget, 0 if the process is best-effort now */
+        @Unsigned
+        public long budgetNs;
+        /** Times that a task of the process started running with a deadline */
+        @Unsigned
+        public long deadlineDispatches;
+        @Unsigned
+        public long misses;
+        /** Summed time by which the deadlines were missed */
+        @Unsigned
+        public long latenessNs;
+        @Unsigned
+        public long maxLatenessNs;
+        /** Times that a task of the process was enqueued as best-effort, as it exceeded the deadline share */
+        @Unsigned
+        public long throttles;
+
+        @Override
+        public String toString() {
+            return "DeadlineStat{budgetNs=" + budgetNs + ", deadlineDispatches=" + deadlineDispatches +
+                    ", misses=" + misses + ", latenessNs=" + latenessNs + ", maxLatenessNs=" + maxLatenessNs +
+                    ", throttles=" + throttles + "}";
+        }
+    }
+
+    final GlobalVariable<SchedulerSetting> schedulerSetting = new GlobalVariable<>(new SchedulerSetting(1,1, true, 1, 0, 0, 0, false, false));
+
+    /** Maximum share of the CPU time in percent that the processes with a latency budget get before the others */
+    final GlobalVariable<@Unsigned Integer> deadlineShare = new GlobalVariable<>(90);
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, TaskStat> taskStats;
+
+    /** Stats of the threads of the filtered processes by tgid (upper 32 bits) and pid, if enabled in the setting */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Long, TaskStat> threadStats;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<CpuStat> cpuStats;
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, Boolean> filteredProcesses;
+
+    @BPFMapDefinition(maxEntries = 256 * 4096)
+    BPFRingBuffer<SliceEvent> sliceEvents;
+
+    /** Time a task (by pid) was last enqueued at, 0 if it ran since */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueuedAt;
+
+    /** Latency budgets of the processes (by tgid), 0 for best-effort processes */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> latencyBudgets;
+
+    /** Time a task (by pid) woke up, 0 if it ran since */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> wokenAt;
+
+    /** Deadline of the enqueued task (by pid), 0 if it has none or ran since */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> deadlines;
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, DeadlineStat> deadlineStats;
+
+    @BPFFunction
+    @AlwaysInline
+    void getTaskStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
+        var id = task.val().tgid;
+        var ret = taskStats.bpf_get(id);
+        if (ret == null) {
+            var stat = new TaskStat();
+            initTaskStat(task, Ptr.of(stat));
+            taskStats.put(id, stat);
+        }
+        var ret2 = taskStats.bpf_get(id);
+        statPtr.set(ret2);
+    }
+
+    /** Stats of the thread if enabled in the setting and its process is filtered, null otherwise */
+    @BPFFunction
+    @AlwaysInline
+    void getThreadStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
+        Ptr<TaskStat> ret = null;
+        if (isAccountingThreads(schedulerSetting.get(), filteredProcesses.bpf_get(task.val().tgid))) {
+            @Unsigned long id = threadStatKey(task);
+            ret = threadStats.bpf_get(id);
+            if (ret == null) {
+                var stat = new TaskStat();
+                initTaskStat(task, Ptr.of(stat));
+                threadStats.put(id, stat);
+                ret = threadStats.bpf_get(id);
+            }
+        }
+        statPtr.set(ret);
+    }
+
+    final GlobalVariable<@Unsigned Long> vtime_now = new GlobalVariable<>(0L);
+
+    @BPFFunction
+    @AlwaysInline
+    boolean isSmaller(@Unsigned long a, @Unsigned long b) {
+        return (long)(a - b) < 0;
+    }
+
+    /** Latency budget of the process of the task, 0 if it is best-effort */
+    @BPFFunction
+    @AlwaysInline
+    @Unsigned long getLatencyBudget(Ptr<TaskDefinitions.task_struct> p) {
+        Ptr<@Unsigned Long> budget = latencyBudgets.bpf_get(p.val().tgid);
+        return budget == null ? 0 : budget.val();
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    void getDeadlineStat(Ptr<TaskDefinitions.task_struct> p, Ptr<Ptr<DeadlineStat>> statPtr) {
+        var id = p.val().tgid;
+        var ret = deadlineStats.bpf_get(id);
+        if (ret == null) {
+            var stat = new DeadlineStat();
+            stat.budgetNs = 0;
+            stat.deadlineDispatches = 0;
+            stat.misses = 0;
+            stat.latenessNs = 0;
+            stat.maxLatenessNs = 0;
+            stat.throttles = 0;
+            deadlineStats.put(id, stat);
+        }
+        var ret2 = deadlineStats.bpf_get(id);
+        statPtr.set(ret2);
+    }
+
+    /** Record the deadline that the task met or missed when it starts running */
+    @BPFFunction
+    @AlwaysInline
+    void checkDeadline(Ptr<TaskDefinitions.task_struct> p, @Unsigned long now) {
+        Ptr<@Unsigned Long> deadline = deadlines.bpf_get(p.val().pid);
+        if (deadline == null || deadline.val() == 0) {
+            return;
+        }
+        @Unsigned long deadlineNs = deadline.val();
+        deadlines.put(p.val().pid, 0L);
+        Ptr<DeadlineStat> stat = null;
+        getDeadlineStat(p, Ptr.of(stat));
+        if (stat == null) {
+            return;
+        }
+        stat.val().budgetNs = getLatencyBudget(p);
+        stat.val().deadlineDispatches += 1;
+        if (isSmaller(deadlineNs, now)) {
+            @Unsigned long latenessNs = now - deadlineNs;
+            stat.val().misses += 1;
+            stat.val().latenessNs += latenessNs;
+            if (latenessNs > stat.val().maxLatenessNs) {
+                stat.val().maxLatenessNs = latenessNs;
+            }
+        }
+    }
+
+    @Override
+    public int init() {
+        int ret = createQueues();
+        if (ret == 0) {
+            ret = scx_bpf_create_dsq(DEADLINE_DSQ_ID, -1);
+        }
+        return ret;
+    }
+
+    /** Tasks that wake up have to run within their budget from now on */
+    @Override
+    public void runnable(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        wokenAt.put(p.val().pid, bpf_ktime_get_ns());
+    }
+
+    @Override
+    public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        @Unsigned long now = bpf_ktime_get_ns();
+        enqueuedAt.put(p.val().pid, now);
+        int dsqId = SHARED_DSQ_ID;
+        int cpu = -1;
+        @Unsigned long budget = getLatencyBudget(p);
+        if (hasConstraints(p)) {
+            cpu = getConstrainedCpu(p);
+            if (cpu >= 0) {
+                dsqId = CPU_DSQ_BASE + cpu;
+            }
+        } else if (budget != 0 && isWithinDeadlineShare(cpuStats.bpf_get(scx_bpf_task_cpu(p)), deadlineShare.get())) {
+            // preempted tasks get a new deadline, as they met their last one
+            Ptr<@Unsigned Long> woken = wokenAt.bpf_get(p.val().pid);
+            @Unsigned long since = woken == null || woken.val() == 0 ? now : woken.val();
+            @Unsigned long deadline = since + budget;
+            deadlines.put(p.val().pid, deadline);
+            scx_bpf_dsq_insert_vtime(p, DEADLINE_DSQ_ID, getSliceLength(p, schedulerSetting.get(), DEADLINE_DSQ_ID), deadline, enq_flags);
+            scx_bpf_kick_cpu(scx_bpf_task_cpu(p), SCX_KICK_IDLE.value());
+            return;
+        } else if (budget != 0) {
+            // throttled, the task runs as best-effort task until its process is within the deadline share again
+            Ptr<DeadlineStat> deadlineStat = null;
+            getDeadlineStat(p, Ptr.of(deadlineStat));
+            if (deadlineStat != null) {
+                deadlineStat.val().throttles += 1;
+            }
+        } else if (isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            dsqId = BOOST_DSQ_ID;
+        }
+        @Unsigned long sliceLength = getSliceLength(p, schedulerSetting.get(), dsqId);
+
+        @Unsigned long vtime = p.val().scx.dsq_vtime;
+
+        /*
+         * Limit the amount of budget that an idling task can accumulate
+         * to one slice.
+         */
+        @Unsigned long maxBudget = schedulerSetting.get().sliceLength();
+        if (isSmaller(vtime, vtime_now.get() - maxBudget)) {
+            vtime = vtime_now.get() - maxBudget;
+        }
+        scx_bpf_dsq_insert_vtime(p, dsqId, sliceLength, vtime, enq_flags);
+        if (cpu >= 0) {
+            scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE.value());
+        }
+    }
+
+    /** Send the slice that ends on the current CPU to the slice events, if it is sampled */
+    @BPFFunction
+    @AlwaysInline
+    void traceSlice(Ptr<TaskDefinitions.task_struct> p, boolean preempted) {
+        int cpu = bpf_get_smp_processor_id();
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        if (cpuStat == null || !isSliceTraced(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            return;
+        }
+        Ptr<SliceEvent> event = sliceEvents.reserve();
+        if (event == null) {
+            // userspace doesn't keep up
+            cpuStat.val().droppedSliceEvents += 1;
+            return;
+        }
+        fillSliceEvent(event, p, cpu, cpuStat, preempted);
+        sliceEvents.submit(event);
+    }
+
+    @Override
+    public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
+        // tasks pinned to a CPU are in the queue of their CPU, which is therefore consumed first
+        if (cpu < MAX_CPUS && scx_bpf_dsq_move_to_local(CPU_DSQ_BASE + cpu)) {
+            return;
+        }
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        boolean canScheduleNonKThreads = canRunUnconstrainedTasks(schedulerSetting.get().cores(), cpu);
+        // the earliest deadline comes before all best-effort tasks, as long as they don't exceed their share
+        if (canScheduleNonKThreads && isWithinDeadlineShare(cpuStat, deadlineShare.get())
+                && scx_bpf_dsq_move_to_local(DEADLINE_DSQ_ID)) {
+            return;
+        }
+        // boosted tasks come before the shared queue, as long as they don't exceed their share
+        if (canScheduleNonKThreads && isWithinBoostShare(cpuStat, schedulerSetting.get().boostShare())
+                && scx_bpf_dsq_move_to_local(BOOST_DSQ_ID)) {
+            return;
+        }
+        Ptr<TaskDefinitions.task_struct> p = null;
+        bpf_for_each_dsq(SHARED_DSQ_ID, p, iter -> {
+            if ((hasConstraints(p) || canScheduleNonKThreads) && tryDispatching(iter, p, cpu)) {
+                recordScanStep(cpuStat, false);
+                return;
+            }
+            recordScanStep(cpuStat, true);
+        });
+        if (canScheduleNonKThreads && !scx_bpf_dsq_move_to_local(DEADLINE_DSQ_ID)) {
+            scx_bpf_dsq_move_to_local(BOOST_DSQ_ID);
+        }
+    }
+
+    /**
+     * Sample the queues regularly on busy CPUs too, which don't dispatch,
+     * and preempt best-effort tasks if deadline tasks are waiting and within their share
+     */
+    @Override
+    public void tick(Ptr<TaskDefinitions.task_struct> p) {
+        int cpu = bpf_get_smp_processor_id();
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
+        if (scx_bpf_dsq_nr_queued(DEADLINE_DSQ_ID) > 0 && getLatencyBudget(p) == 0 && !hasConstraints(p)
+                && isWithinDeadlineShare(cpuStats.bpf_get(cpu), deadlineShare.get())) {
+            p.val().scx.slice = 0;
+        }
+    }
+
+    @Override
+    public void running(Ptr<TaskDefinitions.task_struct> p) {
+        /*
+         * Global vtime always progresses forward as tasks start executing. The
+         * test and update can be performed concurrently from multiple CPUs and
+         * thus racy. Any error should be contained and temporary. Let's just
+         * live with it.
+         */
+        @Unsigned long vtime = p.val().scx.dsq_vtime;
+        if (isSmaller(vtime_now.get(), vtime)) {
+            vtime_now.set(vtime);
+        }
+        Ptr<TaskStat> stat = null;
+        getTaskStat(p, Ptr.of(stat));
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        @Unsigned long now = bpf_ktime_get_ns();
+        @Unsigned long waitNs = getWaitNs(enqueuedAt.bpf_get(p.val().pid), now);
+        enqueuedAt.put(p.val().pid, 0L);
+        checkDeadline(p, now);
+        wokenAt.put(p.val().pid, 0L);
+        accountRunning(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()), now, waitNs,
+                isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid)));
+    }
+
+    @Override
+    public void stopping(Ptr<TaskDefinitions.task_struct> p, boolean runnable) {
+        traceSlice(p, runnable);
+        /*
+         * Scale the execution time by the inverse of the weight and charge.
+         *
+         * Note that the default yield implementation yields by setting
+         * @p->scx.slice to zero and the following would treat the yielding task
+         * as if it has consumed all its slice. If this penalizes yielding tasks
+         * too much, determine the execution time by taking explicit timestamps
+         * instead of depending on @p->scx.slice.
+         */
+        Ptr<TaskStat> stat = null;
+        getTaskStat(p, Ptr.of(stat));
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        // throttled tasks count too, so that the process stays throttled while it is CPU-bound
+        @Unsigned long runtimeNs = accountStopping(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()),
+                runnable, getLatencyBudget(p) != 0);
+
+        p.val().scx.dsq_vtime += runtimeNs / p.val().scx.weight;
+
+    }
+
+    @Override
+    public void enable(Ptr<TaskDefinitions.task_struct> p) {
+        p.val().scx.dsq_vtime = vtime_now.get();
+    }
+
+    @Override
+    public void setSetting(SchedulerSetting setting) {
+        schedulerSetting.set(setting);
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Integer, TaskStat> getTaskStats() {
+        return taskStats;
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Long, TaskStat> getThreadStats() {
+        return threadStats;
+    }
+
+    @Override
+    public BPFArray<CpuStat> getCpuStats() {
+        return cpuStats;
+    }
+
+    @Override
+    public BPFRingBuffer<SliceEvent> getSliceEvents() {
+        return sliceEvents;
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Integer, Boolean> getFilteredProcesses() {
+        return filteredProcesses;
+    }
+
+    /**
+     * Mirror the latency budgets to the BPF map, processes without a budget are best-effort
+     *
+     * @param previous budgets by tgid passed to the previous call
+     * @param current  current budgets by tgid
+     */
+    public void updateLatencyBudgets(Map<Integer, Long> previous, Map<Integer, Long> current) {
+        for (int pid : previous.keySet()) {
+            if (!current.containsKey(pid)) {
+                latencyBudgets.put(pid, 0L);
+            }
+        }
+        for (var entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                latencyBudgets.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Set the maximum share of the CPU time in percent that the processes with a latency budget get
+     * before the best-effort processes
+     */
+    public void setDeadlineShare(int percent) {
+        deadlineShare.set(percent);
+    }
+
+    /** Deadline statistics by tgid of the processes that had a latency budget */
+    public BPFHashMap<@Unsigned Integer, DeadlineStat> getDeadlineStats() {
+        return deadlineStats;
+    }
+}
\ No newline at end of file
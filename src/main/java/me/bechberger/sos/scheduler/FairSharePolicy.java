@@ -0,0 +1,81 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.sos.scheduler.BaseScheduler.SchedulerSetting;
+import me.bechberger.sos.scheduler.UserspaceScheduler.Decision;
+import me.bechberger.sos.scheduler.UserspaceScheduler.EnqueuedTask;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default policy of the {@link UserspaceScheduler}: processes that recently used more CPU time queue
+ * behind the others
+ * <p>
+ * The recent CPU usage of every process (in CPUs) is a moving average over the increases of its runtime
+ * between the batches. The tasks of a process are delayed by its usage times the slice length,
+ * scaled by their weight and capped at {@link #MAX_DELAY_SLICES} slices, so that every task gets its turn.
+ */
+public class FairSharePolicy implements UserspacePolicy {
+
+    private static final double USAGE_SMOOTHING = 0.25;
+    private static final int MAX_DELAY_SLICES = 10;
+    /** Processes that weren't enqueued for this long are forgotten */
+    private static final long FORGET_NS = 10_000_000_000L;
+    private static final int MAX_PROCESSES = 100_000;
+
+    private static class ProcessUsage {
+        long runtimeNs;
+        long seenNs;
+        double usage = 0;
+    }
+
+    private final Map<Integer, ProcessUsage> usages = new HashMap<>();
+    private volatile long sliceNs = 5_000_000;
+
+    @Override
+    public void setSetting(SchedulerSetting setting) {
+        sliceNs = Integer.toUnsignedLong(setting.sliceLength());
+    }
+
+    /** Update and return the usage of the process of the task */
+    private double updateUsage(EnqueuedTask task, long now) {
+        var usage = usages.get(task.tgid);
+        if (usage == null) {
+            usage = new ProcessUsage();
+            usage.runtimeNs = task.processRuntimeNs;
+            usage.seenNs = now;
+            usages.put(task.tgid, usage);
+            return 0;
+        }
+        long elapsedNs = now - usage.seenNs;
+        if (elapsedNs > 0 && task.processRuntimeNs >= usage.runtimeNs) {
+            double current = (double) (task.processRuntimeNs - usage.runtimeNs) / elapsedNs;
+            usage.usage += USAGE_SMOOTHING * (current - usage.usage);
+            usage.runtimeNs = task.processRuntimeNs;
+            usage.seenNs = now;
+        }
+        return usage.usage;
+    }
+
+    private void forgetOldProcesses(long now) {
+        if (usages.size() > MAX_PROCESSES) {
+            usages.values().removeIf(u -> now - u.seenNs > FORGET_NS);
+        }
+    }
+
+    @Override
+    public Map<Integer, Decision> decide(List<EnqueuedTask> batch) {
+        long now = System.nanoTime();
+        long slice = sliceNs;
+        Map<Integer, Decision> decisions = new HashMap<>();
+        for (EnqueuedTask task : batch) {
+            double usage = updateUsage(task, now);
+            double weight = task.weight == 0 ? 1 : task.weight / 100.0;
+            long delayNs = (long) Math.min(usage * slice / weight, (double) MAX_DELAY_SLICES * slice);
+            decisions.put(task.pid, new Decision(delayNs, -1, 0));
+        }
+        forgetOldProcesses(now);
+        return decisions;
+    }
+}
@@ -0,0 +1,32 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.sos.scheduler.BaseScheduler.SchedulerSetting;
+
+import java.util.Set;
+
+/**
+ * Scheduler as it is used by the main loop: its stats, its setting and the filtered processes, without its maps
+ */
+public interface ManagedScheduler extends SchedulerStats, AutoCloseable {
+
+    void setSetting(SchedulerSetting setting);
+
+    /**
+     * Mirror the filtered processes to the scheduler
+     *
+     * @param previous process ids passed to the previous call
+     * @param current  current process ids
+     */
+    void updateFilteredProcesses(Set<Integer> previous, Set<Integer> current);
+
+    /**
+     * Copy the task and thread stats of another scheduler into this one, e.g. when switching the scheduler at runtime
+     * <p>
+     * The processes are marked as not running, as this scheduler didn't see their tasks start.
+     */
+    void importTaskStats(TaskStatsSnapshot stats);
+
+    void attachScheduler();
+
+    boolean isSchedulerAttachedProperly();
+}
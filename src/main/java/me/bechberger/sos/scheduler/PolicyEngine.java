@@ -0,0 +1,193 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.sos.scheduler.UserspaceScheduler.Decision;
+import me.bechberger.sos.scheduler.UserspaceScheduler.EnqueuedTask;
+import me.bechberger.sos.util.Log;
+import me.bechberger.sos.util.ThreadAffinity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/**
+ * Runs a {@link UserspacePolicy} on its own thread, which is pinned to a CPU
+ * <p>
+ * The thread consumes the enqueued tasks from the ring buffer, collects them into batches and hands them to
+ * the policy every {@link #BATCH_INTERVAL_NS} or when a batch is full. Only decisions that changed or that
+ * are about to become too old are written to the decisions map, which keeps the map updates per batch low.
+ * After every batch, the thread tells the scheduler up to which enqueue time it decided, which releases the
+ * tasks that wait for their decision. It reports back every {@link #HEARTBEAT_INTERVAL_NS}, so the scheduler
+ * notices when it stalls.
+ */
+public class PolicyEngine implements AutoCloseable {
+
+    static final long BATCH_INTERVAL_NS = 1_000_000;
+    private static final long POLL_INTERVAL_NS = 100_000;
+    /** A fraction of the stall timeout, so that a single late heartbeat isn't taken as stall */
+    static final long HEARTBEAT_INTERVAL_NS = UserspaceScheduler.STALL_NS / 10;
+    private static final int MAX_BATCH_SIZE = 4096;
+    /** Written decisions that are remembered, to skip writing unchanged ones */
+    private static final int MAX_WRITTEN = 100_000;
+    /** Failing batches are logged at most once per interval */
+    private static final long ERROR_LOG_INTERVAL_NS = 1_000_000_000L;
+
+    private final BPFRingBuffer<EnqueuedTask> enqueuedTasks;
+    private final BPFHashMap<Integer, Decision> decisions;
+    private final LongConsumer heartbeat;
+    private final LongConsumer decidedUntil;
+    private final UserspacePolicy policy;
+    private final int cpu;
+    private final Thread thread;
+    private final List<EnqueuedTask> batch = new ArrayList<>();
+    private final Map<Integer, Decision> written = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Decision> eldest) {
+            return size() > MAX_WRITTEN;
+        }
+    };
+    private volatile boolean running = true;
+    private volatile boolean pinned = false;
+    private volatile long batches = 0;
+    private volatile long decidedTasks = 0;
+    private volatile long writes = 0;
+    private volatile long maxBatchSize = 0;
+    private volatile long failedBatches = 0;
+    /** Failed batches that weren't logged yet */
+    private long unloggedFailures = 0;
+    private long lastErrorLogNs = 0;
+
+    /**
+     * @param heartbeat    called with the current {@link System#nanoTime()} every {@link #HEARTBEAT_INTERVAL_NS}
+     * @param decidedUntil called after every batch with the latest enqueue time of its tasks
+     * @param cpu          CPU that the thread is pinned to
+     */
+    PolicyEngine(BPFRingBuffer<EnqueuedTask> enqueuedTasks, BPFHashMap<Integer, Decision> decisions,
+                 LongConsumer heartbeat, LongConsumer decidedUntil, UserspacePolicy policy, int cpu) {
+        this.enqueuedTasks = enqueuedTasks;
+        this.decisions = decisions;
+        this.heartbeat = heartbeat;
+        this.decidedUntil = decidedUntil;
+        this.policy = policy;
+        this.cpu = cpu;
+        enqueuedTasks.setCallback((buffer, task) -> batch.add(task));
+        thread = new Thread(this::loop, "policy-engine");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void loop() {
+        pinned = ThreadAffinity.pinCurrentThread(cpu);
+        long lastFlush = System.nanoTime();
+        long lastHeartbeat = 0;
+        while (running) {
+            long now = System.nanoTime();
+            if (lastHeartbeat == 0 || now - lastHeartbeat >= HEARTBEAT_INTERVAL_NS) {
+                heartbeat.accept(now);
+                lastHeartbeat = now;
+            }
+            enqueuedTasks.consumeAndThrow();
+            if (batch.size() >= MAX_BATCH_SIZE || (!batch.isEmpty() && now - lastFlush >= BATCH_INTERVAL_NS)) {
+                flush();
+                lastFlush = now;
+            }
+            LockSupport.parkNanos(POLL_INTERVAL_NS);
+        }
+    }
+
+    private void flush() {
+        var tasks = List.copyOf(batch);
+        batch.clear();
+        long lastEnqueuedNs = 0;
+        for (var task : tasks) {
+            lastEnqueuedNs = Math.max(lastEnqueuedNs, task.enqueuedNs);
+        }
+        Map<Integer, Decision> decided;
+        try {
+            decided = policy.decide(tasks);
+        } catch (RuntimeException e) {
+            // the tasks of this batch keep their previous decisions or fall back
+            failedBatches++;
+            logFailure(e);
+            decidedUntil.accept(lastEnqueuedNs);
+            return;
+        }
+        long now = System.nanoTime();
+        long writesInBatch = 0;
+        for (var entry : decided.entrySet()) {
+            Decision decision = entry.getValue();
+            Decision last = written.get(entry.getKey());
+            if (decision.sameAs(last) && now - last.decidedNs < UserspaceScheduler.MAX_DECISION_AGE_NS / 2) {
+                continue;
+            }
+            decision.decidedNs = now;
+            decisions.put(entry.getKey(), decision);
+            written.put(entry.getKey(), decision);
+            writesInBatch++;
+        }
+        // only after the decisions are written, so that the held tasks of the batch find them
+        decidedUntil.accept(lastEnqueuedNs);
+        batches++;
+        decidedTasks += tasks.size();
+        writes += writesInBatch;
+        maxBatchSize = Math.max(maxBatchSize, tasks.size());
+    }
+
+    private void logFailure(RuntimeException e) {
+        unloggedFailures++;
+        long now = System.nanoTime();
+        if (lastErrorLogNs != 0 && now - lastErrorLogNs < ERROR_LOG_INTERVAL_NS) {
+            return;
+        }
+        Log.error("Policy failed to decide " + unloggedFailures + " batch" + (unloggedFailures == 1 ? "" : "es") +
+                ": " + e);
+        unloggedFailures = 0;
+        lastErrorLogNs = now;
+    }
+
+    /** Was the thread pinned to its CPU? */
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    /** Number of enqueued tasks that the policy decided on */
+    public long getDecidedTasks() {
+        return decidedTasks;
+    }
+
+    /** Number of decisions written to the scheduler */
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /** Number of batches that the policy failed to decide, their tasks kept their decisions or fell back */
+    public long getFailedBatches() {
+        return failedBatches;
+    }
+
+    /** Stop the thread, the scheduler falls back to ordering by enqueue time afterward */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.sos.scheduler.BaseScheduler.LoadSample;
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of the stats of a scheduler, which is all that the sampling and the music need
+ * <p>
+ * The BPF schedulers read them from their maps, the {@link SimulatedScheduler} simulates them.
+ */
+public interface SchedulerStats {
+
+    /** Current task stats by tgid, every call reads them again */
+    Set<Map.Entry<Integer, TaskStat>> getTaskStatEntries();
+
+    /** Current thread stats by tgid (upper 32 bits) and pid, every call reads them again */
+    Set<Map.Entry<Long, TaskStat>> getThreadStatEntries();
+
+    /** Sample the load of the CPUs, the current slice or idle period of every CPU is included up to now */
+    LoadSample sampleLoad();
+
+    /** Sum of the wasted scan steps of all CPUs */
+    long getWastedScanSteps();
+
+    /** Sum of the dropped slice events of all CPUs */
+    long getDroppedSliceEvents();
+}
@@ -0,0 +1,324 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.sos.scheduler.BaseScheduler.LoadSample;
+import me.bechberger.sos.scheduler.BaseScheduler.SchedulerSetting;
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import static me.bechberger.sos.scheduler.BaseScheduler.WAIT_BUCKETS;
+import static me.bechberger.sos.scheduler.BaseScheduler.WAIT_HISTOGRAM_FIRST_NS;
+
+/**
+ * Scheduler that doesn't schedule anything, but simulates the task stats of a workload
+ * <p>
+ * This allows to run everything downstream of the task stats without a sched-ext kernel.
+ * The stats advance with the wall clock time between two reads: Every process wants a share of a CPU
+ * (Pareto distributed, so few processes use most of the CPU time), runs in bursts of a process specific length
+ * and switches between active and idle phases. If the active processes want more than the available cores,
+ * they get proportionally less and wait longer. Processes exit and are replaced by new ones with the churn rate.
+ * <p>
+ * The stats behave like the BPF map: every read returns new {@link TaskStat} objects, the stats of exited
+ * processes stay until they are evicted as least recently used.
+ */
+public class SimulatedScheduler implements ManagedScheduler {
+
+    /**
+     * Workload model
+     *
+     * @param processes      number of live processes
+     * @param churnPerSecond share of the processes that exit and are replaced per second
+     * @param seed           seed for the random generator
+     */
+    public record Workload(int processes, double churnPerSecond, long seed) {
+    }
+
+    /** Same as the size of the task stats map in the BPF schedulers */
+    private static final int MAX_ENTRIES = 100000;
+    /** Shape of the Pareto distribution of the wanted CPU share, 1.16 gives the 80-20 rule */
+    private static final double CPU_SHARE_SHAPE = 1.16;
+    private static final double MIN_CPU_SHARE = 0.001;
+    private static final long MIN_BURST_NS = 20_000;
+    private static final long MAX_BURST_NS = 20_000_000;
+    /** Probability per second that a process switches between active and idle */
+    private static final double PHASE_SWITCHES_PER_SECOND = 0.5;
+    /** Maximum simulated time per read, longer pauses between reads are cut */
+    private static final long MAX_STEP_NS = 1_000_000_000L;
+    private static final String[] COMMS = {"java", "bash", "kworker/0:1", "systemd", "pipewire", "firefox", "gcc",
+            "cc1", "node", "python3", "sshd", "Xorg", "gnome-shell", "rustc", "postgres"};
+
+    private static class SimulatedProcess {
+        final int pid;
+        final String comm;
+        /** Share of a CPU that the process wants while it is active */
+        final double cpuShare;
+        /** Typical time that the process runs before it blocks */
+        final long burstNs;
+        boolean active = true;
+
+        SimulatedProcess(int pid, String comm, double cpuShare, long burstNs) {
+            this.pid = pid;
+            this.comm = comm;
+            this.cpuShare = cpuShare;
+            this.burstNs = burstNs;
+        }
+    }
+
+    private final Workload workload;
+    private final SplittableRandom random;
+    private final List<SimulatedProcess> processes = new ArrayList<>();
+    /** Pids of the live processes */
+    private final Set<Integer> alive = new HashSet<>();
+    /** Stats of all processes in access order, like the LRU map */
+    private final LinkedHashMap<Integer, TaskStat> taskStats = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TaskStat> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private Set<Integer> boostedPids = Set.of();
+    private SchedulerSetting setting = new SchedulerSetting(1, 1, true, 1, 0, 0, 0, false, false);
+    private int nextPid = 1000;
+    private double pendingExits = 0;
+    private long lastStepNs = -1;
+    /** Cumulative busy and idle time of the simulated CPUs, the load is spread evenly */
+    private long[] busyNs = new long[0];
+    private long[] idleNs = new long[0];
+    private long sharedQueued = 0;
+    private final long[] waitHistogram = new long[WAIT_BUCKETS];
+
+    public SimulatedScheduler(Workload workload) {
+        this.workload = workload;
+        this.random = new SplittableRandom(workload.seed());
+        for (int i = 0; i < workload.processes(); i++) {
+            spawn();
+        }
+    }
+
+    private void spawn() {
+        int pid = nextPid++;
+        double cpuShare = Math.min(1, MIN_CPU_SHARE / Math.pow(1 - random.nextDouble(), 1 / CPU_SHARE_SHAPE));
+        // log-uniform between the minimum and maximum burst length
+        long burstNs = (long) (MIN_BURST_NS * Math.pow((double) MAX_BURST_NS / MIN_BURST_NS, random.nextDouble()));
+        processes.add(new SimulatedProcess(pid, COMMS[random.nextInt(COMMS.length)], cpuShare, burstNs));
+        alive.add(pid);
+    }
+
+    private int cores() {
+        return setting.cores() > 0 ? setting.cores() :
+                Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Advance the simulation to the current time */
+    private synchronized void step() {
+        long now = System.nanoTime();
+        if (lastStepNs == -1) {
+            lastStepNs = now;
+            return;
+        }
+        long stepNs = Math.min(now - lastStepNs, MAX_STEP_NS);
+        lastStepNs = now;
+        if (stepNs <= 0) {
+            return;
+        }
+        double seconds = stepNs / 1e9;
+        replaceExitedProcesses(seconds);
+        double switchProbability = Math.min(1, PHASE_SWITCHES_PER_SECOND * seconds);
+        double wanted = 0;
+        for (SimulatedProcess process : processes) {
+            if (random.nextDouble() < switchProbability) {
+                process.active = !process.active;
+            }
+            if (process.active) {
+                wanted += process.cpuShare;
+            }
+        }
+        // more wanted than available: everyone gets proportionally less and waits longer
+        double utilization = Math.min(wanted / cores(), 0.99);
+        double factor = wanted > cores() ? cores() / wanted : 1;
+        accountLoad(stepNs, wanted / cores(), utilization);
+        long sliceNs = Math.max(1, setting.sliceLength());
+        for (SimulatedProcess process : processes) {
+            if (process.active) {
+                run(process, (long) (process.cpuShare * factor * stepNs * -Math.log(1 - random.nextDouble())),
+                        sliceNs, utilization, now);
+            }
+        }
+    }
+
+    private void accountLoad(long stepNs, double load, double utilization) {
+        if (busyNs.length != cores()) {
+            busyNs = Arrays.copyOf(busyNs, cores());
+            idleNs = Arrays.copyOf(idleNs, cores());
+        }
+        long cpuBusyNs = (long) (Math.min(1, load) * stepNs);
+        for (int cpu = 0; cpu < busyNs.length; cpu++) {
+            busyNs[cpu] += cpuBusyNs;
+            idleNs[cpu] += stepNs - cpuBusyNs;
+        }
+        // mean number of waiting tasks in an M/M/1 queue per CPU
+        sharedQueued = (long) (cores() * utilization * utilization / (1 - utilization));
+    }
+
+    private void replaceExitedProcesses(double seconds) {
+        pendingExits += workload.churnPerSecond() * processes.size() * seconds;
+        for (; pendingExits >= 1 && !processes.isEmpty(); pendingExits--) {
+            int index = random.nextInt(processes.size());
+            var exited = processes.get(index);
+            processes.set(index, processes.getLast());
+            processes.removeLast();
+            alive.remove(exited.pid);
+            spawn();
+        }
+    }
+
+    private void run(SimulatedProcess process, long runtimeNs, long sliceNs, double utilization, long now) {
+        if (runtimeNs <= 0) {
+            return;
+        }
+        var stat = taskStats.get(process.pid);
+        if (stat == null) {
+            stat = new TaskStat();
+            stat.comm = process.comm;
+            taskStats.put(process.pid, stat);
+        }
+        long dispatches = 1 + runtimeNs / Math.min(process.burstNs, sliceNs);
+        // waiting in a single server queue, boosted processes wait less
+        double meanWaitNs = Math.min(process.burstNs, sliceNs) * utilization / (1 - utilization);
+        stat.boosted = boostedPids.contains(process.pid);
+        if (stat.boosted) {
+            meanWaitNs /= 2;
+        }
+        stat.dispatches += dispatches;
+        stat.runtimeNs += runtimeNs;
+        // bursts longer than the slice are cut by the end of the slice, the rest ends by blocking
+        long exhaustions = process.burstNs > sliceNs ? runtimeNs / sliceNs : 0;
+        stat.involuntarySwitches += exhaustions;
+        stat.sliceExhaustions += exhaustions;
+        stat.voluntarySwitches += dispatches - exhaustions;
+        stat.assignedSliceNs += dispatches * sliceNs;
+        stat.usedSliceNs += runtimeNs;
+        stat.waitNs += (long) (meanWaitNs * dispatches);
+        // expected maximum of exponentially distributed waits
+        stat.maxWaitNs = Math.max(stat.maxWaitNs, (long) (meanWaitNs * (Math.log(dispatches) + 0.577)));
+        accountWaits(dispatches, meanWaitNs);
+        stat.lastStartNs = now;
+    }
+
+    /** Distribute the waits of the dispatches exponentially over the wait histogram */
+    private void accountWaits(long dispatches, double meanWaitNs) {
+        if (meanWaitNs <= 0) {
+            waitHistogram[0] += dispatches;
+            return;
+        }
+        long lower = 0;
+        long upper = WAIT_HISTOGRAM_FIRST_NS;
+        for (int bucket = 0; bucket < WAIT_BUCKETS; bucket++) {
+            double share = Math.exp(-lower / meanWaitNs) -
+                    (bucket == WAIT_BUCKETS - 1 ? 0 : Math.exp(-upper / meanWaitNs));
+            waitHistogram[bucket] += Math.round(dispatches * share);
+            lower = upper;
+            upper *= 2;
+        }
+    }
+
+    /** Is the simulated process still alive? */
+    public synchronized boolean isAlive(int pid) {
+        return alive.contains(pid);
+    }
+
+    private static TaskStat copy(TaskStat stat) {
+        var copy = new TaskStat();
+        copy.comm = stat.comm;
+        copy.dispatches = stat.dispatches;
+        copy.runtimeNs = stat.runtimeNs;
+        copy.maxWaitNs = stat.maxWaitNs;
+        copy.waitNs = stat.waitNs;
+        copy.voluntarySwitches = stat.voluntarySwitches;
+        copy.involuntarySwitches = stat.involuntarySwitches;
+        copy.sliceExhaustions = stat.sliceExhaustions;
+        copy.assignedSliceNs = stat.assignedSliceNs;
+        copy.usedSliceNs = stat.usedSliceNs;
+        copy.boosted = stat.boosted;
+        copy.currentlyRunning = stat.currentlyRunning;
+        copy.lastStartNs = stat.lastStartNs;
+        copy.ignored = stat.ignored;
+        return copy;
+    }
+
+    /** Advances the simulation and returns a copy of the stats */
+    @Override
+    public synchronized Set<Map.Entry<Integer, TaskStat>> getTaskStatEntries() {
+        step();
+        Map<Integer, TaskStat> copy = new HashMap<>(taskStats.size() * 2);
+        // iterating doesn't change the access order
+        taskStats.forEach((pid, stat) -> copy.put(pid, copy(stat)));
+        return copy.entrySet();
+    }
+
+    /** Load of the simulated CPUs, advances the simulation too */
+    @Override
+    public synchronized LoadSample sampleLoad() {
+        step();
+        return new LoadSample(System.nanoTime(), busyNs.clone(), idleNs.clone(), new long[busyNs.length],
+                sharedQueued, 0, waitHistogram.clone());
+    }
+
+    @Override
+    public synchronized void setSetting(SchedulerSetting setting) {
+        this.setting = setting;
+    }
+
+    /** The simulated processes have no threads */
+    @Override
+    public Set<Map.Entry<Long, TaskStat>> getThreadStatEntries() {
+        return Set.of();
+    }
+
+    /** The imported processes don't run in the simulation, so their stats stay until they are evicted */
+    @Override
+    public synchronized void importTaskStats(TaskStatsSnapshot stats) {
+        stats.tasks().forEach((tgid, imported) -> {
+            var stat = copy(imported);
+            stat.currentlyRunning = false;
+            taskStats.putIfAbsent(tgid, stat);
+        });
+    }
+
+    @Override
+    public synchronized void updateFilteredProcesses(Set<Integer> previous, Set<Integer> current) {
+        boostedPids = Set.copyOf(current);
+    }
+
+    @Override
+    public long getWastedScanSteps() {
+        return 0;
+    }
+
+    @Override
+    public long getDroppedSliceEvents() {
+        return 0;
+    }
+
+    @Override
+    public void attachScheduler() {
+        step();
+    }
+
+    @Override
+    public boolean isSchedulerAttachedProperly() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
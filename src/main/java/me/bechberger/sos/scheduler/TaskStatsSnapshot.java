@@ -0,0 +1,51 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Task and thread stats of a scheduler at one point in time, which stay readable after the scheduler is closed
+ * <p>
+ * Used to carry the stats over when switching the scheduler at runtime.
+ *
+ * @param tasks   task stats by tgid
+ * @param threads thread stats by tgid (upper 32 bits) and pid
+ */
+public record TaskStatsSnapshot(Map<Integer, TaskStat> tasks, Map<Long, TaskStat> threads) {
+
+    public static TaskStatsSnapshot of(SchedulerStats stats) {
+        Map<Integer, TaskStat> tasks = new HashMap<>();
+        for (var entry : stats.getTaskStatEntries()) {
+            tasks.put(entry.getKey(), entry.getValue());
+        }
+        Map<Long, TaskStat> threads = new HashMap<>();
+        for (var entry : stats.getThreadStatEntries()) {
+            threads.put(entry.getKey(), entry.getValue());
+        }
+        return new TaskStatsSnapshot(tasks, threads);
+    }
+
+    /** Stats that are new or changed since the earlier snapshot */
+    public TaskStatsSnapshot changedSince(TaskStatsSnapshot earlier) {
+        return new TaskStatsSnapshot(changed(tasks, earlier.tasks), changed(threads, earlier.threads));
+    }
+
+    private static <K> Map<K, TaskStat> changed(Map<K, TaskStat> stats, Map<K, TaskStat> earlier) {
+        Map<K, TaskStat> changed = new HashMap<>();
+        stats.forEach((key, stat) -> {
+            if (!sameProgress(stat, earlier.get(key))) {
+                changed.put(key, stat);
+            }
+        });
+        return changed;
+    }
+
+    /** Every slice that starts or ends changes the dispatches, the runtime or the switches */
+    private static boolean sameProgress(TaskStat stat, TaskStat earlier) {
+        return earlier != null && stat.dispatches == earlier.dispatches && stat.runtimeNs == earlier.runtimeNs &&
+                stat.waitNs == earlier.waitNs && stat.voluntarySwitches == earlier.voluntarySwitches &&
+                stat.involuntarySwitches == earlier.involuntarySwitches;
+    }
+}
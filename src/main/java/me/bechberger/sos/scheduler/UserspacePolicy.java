@@ -0,0 +1,29 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.sos.scheduler.BaseScheduler.SchedulerSetting;
+import me.bechberger.sos.scheduler.UserspaceScheduler.Decision;
+import me.bechberger.sos.scheduler.UserspaceScheduler.EnqueuedTask;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Policy of the {@link UserspaceScheduler}, which decides on batches of enqueued tasks
+ * <p>
+ * All methods except {@link #setSetting(SchedulerSetting)} are only called from the thread of the
+ * {@link PolicyEngine}, so the policy can keep its state without synchronization.
+ */
+public interface UserspacePolicy {
+
+    /**
+     * Decide on the enqueued tasks
+     *
+     * @param batch tasks in the order they were enqueued, a task might be contained multiple times
+     * @return decisions by pid, tasks without a decision keep their previous one until it is too old
+     */
+    Map<Integer, Decision> decide(List<EnqueuedTask> batch);
+
+    /** Called whenever the setting of the scheduler changes, from any thread */
+    default void setSetting(SchedulerSetting setting) {
+    }
+}
@@ -0,0 +1,529 @@
+package me.bechberger.sos.scheduler;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.Size;
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.BPFJ;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.runtime.TaskDefinitions;
+import me.bechberger.ebpf.type.Ptr;
+
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_kick_flags.SCX_KICK_IDLE;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_smp_processor_id;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_ktime_get_ns;
+
+/**
+ * Scheduler whose policy runs in Java
+ * <p>
+ * Every enqueued task is sent to userspace through a ring buffer. The {@link PolicyEngine} collects them
+ * on a pinned thread and lets a {@link UserspacePolicy} decide in batches on the position of the tasks
+ * in the queue and their CPU, the decisions are written to a map by pid. Meanwhile, the tasks wait in a
+ * holding queue, the dispatch moves them to their queues as soon as the policy decided on their enqueue, ordered
+ * by their enqueue time plus the decided offset. A slow or stalled userspace can't leave them behind: tasks that
+ * waited for {@link #MAX_HOLD_NS} and all tasks, if the policy thread didn't report back for {@link #STALL_NS},
+ * are placed by their last decision or simply ordered by their enqueue time.
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "userspace_soc_scheduler")
+public abstract class UserspaceScheduler extends BPFProgram implements BaseScheduler {
+
+    /** Decisions are ignored if the policy thread didn't report back for this long */
+    static final long STALL_NS = 50_000_000L;
+    /** Decisions that are older are ignored, they are refreshed by the policy engine */
+    static final long MAX_DECISION_AGE_NS = 1_000_000_000L;
+    /** Tasks wait at most this long in the holding queue for the decision on their enqueue */
+    static final long MAX_HOLD_NS = 5_000_000L;
+    /** Queue of the tasks that wait for the decision on their enqueue, FIFO */
+    private static final int HOLD_DSQ_ID = 3;
+
+    /**
+     * Task that is enqueued, sent to the policy
+     */
+    @Type
+    public static class EnqueuedTask {
+        @Unsigned
+        public int pid;
+        @Unsigned
+        public int tgid;
+        /** CPU that the task ran on last */
+        public int prevCpu;
+        /** Weight of the task, 100 by default */
+        @Unsigned
+        public int weight;
+        @Unsigned
+        public long enqueuedNs;
+        /** Runtime of the process of the task so far */
+        @Unsigned
+        public long processRuntimeNs;
+        /** Is the task one of the filtered processes? */
+        public boolean filtered;
+        @Size(COMM_LENGTH)
+        public String comm;
+    }
+
+    /**
+     * Decision of the policy for a task
+     */
+    @Type
+    public static class Decision {
+        /** Added to the enqueue time to order the queues, smaller runs earlier */
+        public long orderOffsetNs;
+        /** CPU whose queue the task is placed in, -1 for the shared queue */
+        public int cpu;
+        /** Slice length, 0 for the slice length of the setting */
+        @Unsigned
+        public long sliceNs;
+        /** Time of the decision, like {@link System#nanoTime()} */
+        @Unsigned
+        public long decidedNs;
+
+        public Decision() {
+        }
+
+        public Decision(long orderOffsetNs, int cpu, long sliceNs) {
+            this.orderOffsetNs = orderOffsetNs;
+            this.cpu = cpu;
+            this.sliceNs = sliceNs;
+        }
+
+        /** Same decision, ignoring the time of the decision */
+        public boolean sameAs(Decision other) {
+            return other != null && orderOffsetNs == other.orderOffsetNs && cpu == other.cpu && sliceNs == other.sliceNs;
+        }
+    }
+
+    /**
+     * Queue, order and slice of a task
+     */
+    @Type
+    static class Placement {
+        int dsqId;
+        /** CPU of the queue, -1 for the shared and the boost queue */
+        int cpu;
+        @Unsigned
+        long vtime;
+        @Unsigned
+        long sliceNs;
+    }
+
+    /**
+     * Per CPU statistics of the decisions
+     */
+    @Type
+    public static class DecisionStat {
+        /** Enqueues that used a decision of the policy */
+        @Unsigned
+        public long decided;
+        /** Enqueues without a current decision */
+        @Unsigned
+        public long fallbacks;
+        /** Enqueues that waited for their decision in the holding queue */
+        @Unsigned
+        public long held;
+        /** Enqueued tasks that didn't fit into the ring buffer */
+        @Unsigned
+        public long droppedTasks;
+    }
+
+    final GlobalVariable<SchedulerSetting> schedulerSetting = new GlobalVariable<>(new SchedulerSetting(1,1, true, 1, 0, 0, 0, false, false));
+
+    /** Last time the policy thread reported back */
+    final GlobalVariable<@Unsigned Long> policyHeartbeatNs = new GlobalVariable<>(0L);
+
+    /** The policy decided on all enqueues up to this enqueue time */
+    final GlobalVariable<@Unsigned Long> policyDecidedUntilNs = new GlobalVariable<>(0L);
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, TaskStat> taskStats;
+
+    /** Stats of the threads of the filtered processes by tgid (upper 32 bits) and pid, if enabled in the setting */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Long, TaskStat> threadStats;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<CpuStat> cpuStats;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<DecisionStat> decisionStats;
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, Boolean> filteredProcesses;
+
+    @BPFMapDefinition(maxEntries = 256 * 4096)
+    BPFRingBuffer<SliceEvent> sliceEvents;
+
+    @BPFMapDefinition(maxEntries = 256 * 4096)
+    BPFRingBuffer<EnqueuedTask> enqueuedTasks;
+
+    /** Decisions of the policy by pid */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, Decision> decisions;
+
+    /** Time a task (by pid) was last enqueued at, 0 if it ran since */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueuedAt;
+
+    private UserspacePolicy policy = new FairSharePolicy();
+    private int policyCpu = -1;
+    private PolicyEngine engine;
+
+    @BPFFunction
+    @AlwaysInline
+    void getTaskStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
+        var id = task.val().tgid;
+        var ret = taskStats.bpf_get(id);
+        if (ret == null) {
+            var stat = new TaskStat();
+            initTaskStat(task, Ptr.of(stat));
+            taskStats.put(id, stat);
+        }
+        var ret2 = taskStats.bpf_get(id);
+        statPtr.set(ret2);
+    }
+
+    /** Stats of the thread if enabled in the setting and its process is filtered, null otherwise */
+    @BPFFunction
+    @AlwaysInline
+    void getThreadStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
+        Ptr<TaskStat> ret = null;
+        if (isAccountingThreads(schedulerSetting.get(), filteredProcesses.bpf_get(task.val().tgid))) {
+            @Unsigned long id = threadStatKey(task);
+            ret = threadStats.bpf_get(id);
+            if (ret == null) {
+                var stat = new TaskStat();
+                initTaskStat(task, Ptr.of(stat));
+                threadStats.put(id, stat);
+                ret = threadStats.bpf_get(id);
+            }
+        }
+        statPtr.set(ret);
+    }
+
+    /** Did the policy thread not report back for {@link #STALL_NS}? */
+    @BPFFunction
+    @AlwaysInline
+    boolean isPolicyStalled(@Unsigned long now) {
+        // signed difference, the heartbeat is set in userspace and might be slightly ahead
+        return (long) (now - policyHeartbeatNs.get()) >= STALL_NS;
+    }
+
+    /** Current decision for the task, null if there is none, it is too old or the policy thread stalled */
+    @BPFFunction
+    @AlwaysInline
+    void getDecision(Ptr<TaskDefinitions.task_struct> p, @Unsigned long now, Ptr<Ptr<Decision>> decisionPtr) {
+        Ptr<Decision> decision = null;
+        if (!isPolicyStalled(now)) {
+            decision = decisions.bpf_get(p.val().pid);
+            if (decision != null && (long) (now - decision.val().decidedNs) > MAX_DECISION_AGE_NS) {
+                decision = null;
+            }
+        }
+        decisionPtr.set(decision);
+    }
+
+    /** Send the task to the policy, false if it doesn't keep up */
+    @BPFFunction
+    @AlwaysInline
+    boolean sendToPolicy(Ptr<TaskDefinitions.task_struct> p, @Unsigned long now, Ptr<DecisionStat> decisionStat) {
+        Ptr<EnqueuedTask> task = enqueuedTasks.reserve();
+        if (task == null) {
+            if (decisionStat != null) {
+                decisionStat.val().droppedTasks += 1;
+            }
+            return false;
+        }
+        task.val().pid = p.val().pid;
+        task.val().tgid = p.val().tgid;
+        task.val().prevCpu = scx_bpf_task_cpu(p);
+        task.val().weight = p.val().scx.weight;
+        task.val().enqueuedNs = now;
+        Ptr<TaskStat> stat = taskStats.bpf_get(p.val().tgid);
+        task.val().processRuntimeNs = stat == null ? 0 : stat.val().runtimeNs;
+        task.val().filtered = isFiltered(filteredProcesses.bpf_get(p.val().tgid));
+        BPFJ.bpf_probe_read_kernel_str(task.val().comm, p.val().comm);
+        enqueuedTasks.submit(task);
+        return true;
+    }
+
+    /** Place a task without constraints by its current decision, or by its enqueue time without one */
+    @BPFFunction
+    @AlwaysInline
+    void placeTask(Ptr<TaskDefinitions.task_struct> p, @Unsigned long enqueuedNs, @Unsigned long now,
+                   Ptr<DecisionStat> decisionStat, Ptr<Placement> placement) {
+        placement.val().dsqId = SHARED_DSQ_ID;
+        placement.val().cpu = -1;
+        placement.val().vtime = enqueuedNs;
+        placement.val().sliceNs = 0;
+        Ptr<Decision> decision = null;
+        getDecision(p, now, Ptr.of(decision));
+        if (decision != null) {
+            placement.val().vtime = enqueuedNs + decision.val().orderOffsetNs;
+            placement.val().sliceNs = decision.val().sliceNs;
+            int decidedCpu = decision.val().cpu;
+            if (decidedCpu >= 0 && decidedCpu < MAX_CPUS && bpf_cpumask_test_cpu(decidedCpu, p.val().cpus_ptr)) {
+                placement.val().cpu = decidedCpu;
+                placement.val().dsqId = CPU_DSQ_BASE + decidedCpu;
+            }
+            if (decisionStat != null) {
+                decisionStat.val().decided += 1;
+            }
+        } else if (decisionStat != null) {
+            decisionStat.val().fallbacks += 1;
+        }
+        if (placement.val().cpu < 0 && isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            placement.val().dsqId = BOOST_DSQ_ID;
+        }
+        if (placement.val().sliceNs == 0) {
+            placement.val().sliceNs = getSliceLength(p, schedulerSetting.get(), placement.val().dsqId);
+        }
+    }
+
+    /** Wake up the CPU of the placement, or an idle CPU that the task can run on */
+    @BPFFunction
+    @AlwaysInline
+    void kickForPlacement(Ptr<TaskDefinitions.task_struct> p, Ptr<Placement> placement) {
+        int cpu = placement.val().cpu;
+        if (cpu < 0) {
+            cpu = scx_bpf_pick_idle_cpu(p.val().cpus_ptr, 0);
+        }
+        if (cpu >= 0) {
+            scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE.value());
+        }
+    }
+
+    /**
+     * Move the held tasks that the policy decided on to their queues, the holding queue is in enqueue order,
+     * so the scan stops at the first task that still waits
+     * <p>
+     * Tasks that waited for {@link #MAX_HOLD_NS}, and all tasks if the policy thread stalled, are placed too.
+     */
+    @BPFFunction
+    @AlwaysInline
+    void releaseHeldTasks(Ptr<DecisionStat> decisionStat) {
+        @Unsigned long now = bpf_ktime_get_ns();
+        boolean stalled = isPolicyStalled(now);
+        @Unsigned long decidedUntilNs = policyDecidedUntilNs.get();
+        Ptr<TaskDefinitions.task_struct> p = null;
+        bpf_for_each_dsq(HOLD_DSQ_ID, p, iter -> {
+            Ptr<@Unsigned Long> enqueued = enqueuedAt.bpf_get(p.val().pid);
+            @Unsigned long enqueuedNs = enqueued == null || enqueued.val() == 0 ? now : enqueued.val();
+            if (!stalled && enqueuedNs > decidedUntilNs && now - enqueuedNs < MAX_HOLD_NS) {
+                // returns from releaseHeldTasks, the following tasks were enqueued later
+                return;
+            }
+            var placement = new Placement();
+            placeTask(p, enqueuedNs, now, decisionStat, Ptr.of(placement));
+            scx_bpf_dsq_move_set_slice(iter, placement.sliceNs);
+            scx_bpf_dsq_move_set_vtime(iter, placement.vtime);
+            if (scx_bpf_dsq_move_vtime(iter, p, placement.dsqId, 0)) {
+                kickForPlacement(p, Ptr.of(placement));
+            }
+        });
+    }
+
+    @Override
+    public int init() {
+        int ret = createQueues();
+        if (ret == 0) {
+            ret = scx_bpf_create_dsq(HOLD_DSQ_ID, -1);
+        }
+        return ret;
+    }
+
+    @Override
+    public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        @Unsigned long now = bpf_ktime_get_ns();
+        enqueuedAt.put(p.val().pid, now);
+        Ptr<DecisionStat> decisionStat = decisionStats.bpf_get(bpf_get_smp_processor_id());
+        boolean sent = sendToPolicy(p, now, decisionStat);
+        if (hasConstraints(p)) {
+            int cpu = getConstrainedCpu(p);
+            int dsqId = cpu >= 0 ? CPU_DSQ_BASE + cpu : SHARED_DSQ_ID;
+            scx_bpf_dsq_insert_vtime(p, dsqId, getSliceLength(p, schedulerSetting.get(), dsqId), now, enq_flags);
+            if (cpu >= 0) {
+                scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE.value());
+            }
+            return;
+        }
+        if (sent && !isPolicyStalled(now)) {
+            // placed by the dispatch as soon as the policy decided on this enqueue
+            scx_bpf_dsq_insert(p, HOLD_DSQ_ID, schedulerSetting.get().sliceLength(), enq_flags);
+            if (decisionStat != null) {
+                decisionStat.val().held += 1;
+            }
+            return;
+        }
+        var placement = new Placement();
+        placeTask(p, now, now, decisionStat, Ptr.of(placement));
+        scx_bpf_dsq_insert_vtime(p, placement.dsqId, placement.sliceNs, placement.vtime, enq_flags);
+        if (placement.cpu >= 0) {
+            scx_bpf_kick_cpu(placement.cpu, SCX_KICK_IDLE.value());
+        }
+    }
+
+    /** Send the slice that ends on the current CPU to the slice events, if it is sampled */
+    @BPFFunction
+    @AlwaysInline
+    void traceSlice(Ptr<TaskDefinitions.task_struct> p, boolean preempted) {
+        int cpu = bpf_get_smp_processor_id();
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        if (cpuStat == null || !isSliceTraced(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            return;
+        }
+        Ptr<SliceEvent> event = sliceEvents.reserve();
+        if (event == null) {
+            // userspace doesn't keep up
+            cpuStat.val().droppedSliceEvents += 1;
+            return;
+        }
+        fillSliceEvent(event, p, cpu, cpuStat, preempted);
+        sliceEvents.submit(event);
+    }
+
+    @Override
+    public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
+        releaseHeldTasks(decisionStats.bpf_get(cpu));
+        // pinned and placed tasks are in the queue of their CPU, which is therefore consumed first
+        if (cpu < MAX_CPUS && scx_bpf_dsq_move_to_local(CPU_DSQ_BASE + cpu)) {
+            return;
+        }
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        boolean canScheduleNonKThreads = canRunUnconstrainedTasks(schedulerSetting.get().cores(), cpu);
+        // boosted tasks come before the shared queue, as long as they don't exceed their share
+        if (canScheduleNonKThreads && isWithinBoostShare(cpuStat, schedulerSetting.get().boostShare())
+                && scx_bpf_dsq_move_to_local(BOOST_DSQ_ID)) {
+            return;
+        }
+        Ptr<TaskDefinitions.task_struct> p = null;
+        bpf_for_each_dsq(SHARED_DSQ_ID, p, iter -> {
+            if ((hasConstraints(p) || canScheduleNonKThreads) && tryDispatching(iter, p, cpu)) {
+                recordScanStep(cpuStat, false);
+                return;
+            }
+            recordScanStep(cpuStat, true);
+        });
+        if (canScheduleNonKThreads) {
+            scx_bpf_dsq_move_to_local(BOOST_DSQ_ID);
+        }
+    }
+
+    /** Sample the queues regularly on busy CPUs too, which don't dispatch */
+    @Override
+    public void tick(Ptr<TaskDefinitions.task_struct> p) {
+        int cpu = bpf_get_smp_processor_id();
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
+    }
+
+    @Override
+    public void running(Ptr<TaskDefinitions.task_struct> p) {
+        Ptr<TaskStat> stat = null;
+        getTaskStat(p, Ptr.of(stat));
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        @Unsigned long now = bpf_ktime_get_ns();
+        @Unsigned long waitNs = getWaitNs(enqueuedAt.bpf_get(p.val().pid), now);
+        enqueuedAt.put(p.val().pid, 0L);
+        accountRunning(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()), now, waitNs,
+                isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid)));
+    }
+
+    @Override
+    public void stopping(Ptr<TaskDefinitions.task_struct> p, boolean runnable) {
+        traceSlice(p, runnable);
+        Ptr<TaskStat> stat = null;
+        getTaskStat(p, Ptr.of(stat));
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        accountStopping(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()),
+                runnable, false);
+    }
+
+    /** Use another policy, only before the scheduler is attached and the setting is set */
+    public void setPolicy(UserspacePolicy policy) {
+        this.policy = policy;
+    }
+
+    /** CPU that the policy thread is pinned to, -1 for the last CPU, only before the scheduler is attached */
+    public void setPolicyCpu(int policyCpu) {
+        this.policyCpu = policyCpu;
+    }
+
+    /** Start the policy thread, before attaching, so that the first tasks already get decisions */
+    @Override
+    public void attachScheduler() {
+        engine = new PolicyEngine(enqueuedTasks, decisions, policyHeartbeatNs::set, policyDecidedUntilNs::set, policy,
+                policyCpu >= 0 ? policyCpu : Runtime.getRuntime().availableProcessors() - 1);
+        engine.start();
+        BaseScheduler.super.attachScheduler();
+    }
+
+    /** Sum of the per CPU decision stats */
+    public DecisionStat getDecisionStat() {
+        var sum = new DecisionStat();
+        for (int cpu = 0; cpu < Math.min(MAX_CPUS, Runtime.getRuntime().availableProcessors()); cpu++) {
+            var stat = decisionStats.get(cpu);
+            sum.decided += stat.decided;
+            sum.fallbacks += stat.fallbacks;
+            sum.held += stat.held;
+            sum.droppedTasks += stat.droppedTasks;
+        }
+        return sum;
+    }
+
+    /** Policy engine, null before the scheduler is attached */
+    public PolicyEngine getPolicyEngine() {
+        return engine;
+    }
+
+    @Override
+    public void close() {
+        if (engine != null) {
+            engine.close();
+        }
+        super.close();
+    }
+
+    @Override
+    public void setSetting(SchedulerSetting setting) {
+        schedulerSetting.set(setting);
+        policy.setSetting(setting);
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Integer, TaskStat> getTaskStats() {
+        return taskStats;
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Long, TaskStat> getThreadStats() {
+        return threadStats;
+    }
+
+    @Override
+    public BPFArray<CpuStat> getCpuStats() {
+        return cpuStats;
+    }
+
+    @Override
+    public BPFRingBuffer<SliceEvent> getSliceEvents() {
+        return sliceEvents;
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Integer, Boolean> getFilteredProcesses() {
+        return filteredProcesses;
+    }
+}
@@ -6,20 +6,18 @@ import me.bechberger.ebpf.annotations.bpf.BPF;
 import me.bechberger.ebpf.annotations.bpf.BPFFunction;
 import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
 import me.bechberger.ebpf.annotations.bpf.Property;
-import me.bechberger.ebpf.bpf.BPFJ;
 import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
 import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
-import me.bechberger.ebpf.runtime.BpfDefinitions;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
 import me.bechberger.ebpf.runtime.TaskDefinitions;
 import me.bechberger.ebpf.type.Ptr;
 
-import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
-import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL_ON;
-import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_enq_flags.SCX_ENQ_PREEMPT;
-import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_public_consts.SCX_SLICE_DFL;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_kick_flags.SCX_KICK_IDLE;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_smp_processor_id;
 import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_ktime_get_ns;
 
 /**
@@ -29,13 +27,29 @@ import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_ktime_get_ns;
 @Property(name = "sched_name", value = "fifo_soc_scheduler")
 public abstract class VTimeScheduler extends BPFProgram implements BaseScheduler {
 
-    private static final int SHARED_DSQ_ID = 0;
 
-    final GlobalVariable<SchedulerSetting> schedulerSetting = new GlobalVariable<>(new SchedulerSetting(1,1, true));
+    final GlobalVariable<SchedulerSetting> schedulerSetting = new GlobalVariable<>(new SchedulerSetting(1,1, true, 1, 0, 0, 0, false, false));
 
     @BPFMapDefinition(maxEntries = 100000)
     BPFLRUHashMap<@Unsigned Integer, TaskStat> taskStats;
 
+    /** Stats of the threads of the filtered processes by tgid (upper 32 bits) and pid, if enabled in the setting */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Long, TaskStat> threadStats;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<CpuStat> cpuStats;
+
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, Boolean> filteredProcesses;
+
+    @BPFMapDefinition(maxEntries = 256 * 4096)
+    BPFRingBuffer<SliceEvent> sliceEvents;
+
+    /** Time a task (by pid) was last enqueued at, 0 if it ran since */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueuedAt;
+
     @BPFFunction
     @AlwaysInline
     void getTaskStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
@@ -43,17 +57,31 @@ public abstract class VTimeScheduler extends BPFProgram implements BaseScheduler
         var ret = taskStats.bpf_get(id);
         if (ret == null) {
             var stat = new TaskStat();
-            stat.runtimeNs = 0;
-            stat.currentlyRunning = false;
-            stat.dispatches = 0;
-            stat.ignored = hasConstraints(task);
-            BPFJ.bpf_probe_read_kernel_str(stat.comm, task.val().comm);
+            initTaskStat(task, Ptr.of(stat));
             taskStats.put(id, stat);
         }
         var ret2 = taskStats.bpf_get(id);
         statPtr.set(ret2);
     }
 
+    /** Stats of the thread if enabled in the setting and its process is filtered, null otherwise */
+    @BPFFunction
+    @AlwaysInline
+    void getThreadStat(Ptr<TaskDefinitions.task_struct> task, Ptr<Ptr<TaskStat>> statPtr) {
+        Ptr<TaskStat> ret = null;
+        if (isAccountingThreads(schedulerSetting.get(), filteredProcesses.bpf_get(task.val().tgid))) {
+            @Unsigned long id = threadStatKey(task);
+            ret = threadStats.bpf_get(id);
+            if (ret == null) {
+                var stat = new TaskStat();
+                initTaskStat(task, Ptr.of(stat));
+                threadStats.put(id, stat);
+                ret = threadStats.bpf_get(id);
+            }
+        }
+        statPtr.set(ret);
+    }
+
     final GlobalVariable<@Unsigned Long> vtime_now = new GlobalVariable<>(0L);
 
     @BPFFunction
@@ -64,15 +92,23 @@ public abstract class VTimeScheduler extends BPFProgram implements BaseScheduler
 
     @Override
     public int init() {
-        return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+        return createQueues();
     }
 
     @Override
     public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
-        @Unsigned int sliceLength = schedulerSetting.get().sliceLength();
-        if (schedulerSetting.get().scaleSliceLength()) {
-            sliceLength = sliceLength / scx_bpf_dsq_nr_queued(SHARED_DSQ_ID);
+        enqueuedAt.put(p.val().pid, bpf_ktime_get_ns());
+        int dsqId = SHARED_DSQ_ID;
+        int cpu = -1;
+        if (hasConstraints(p)) {
+            cpu = getConstrainedCpu(p);
+            if (cpu >= 0) {
+                dsqId = CPU_DSQ_BASE + cpu;
+            }
+        } else if (isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            dsqId = BOOST_DSQ_ID;
         }
+        @Unsigned long sliceLength = getSliceLength(p, schedulerSetting.get(), dsqId);
 
         @Unsigned long vtime = p.val().scx.dsq_vtime;
 
@@ -80,31 +116,67 @@ public abstract class VTimeScheduler extends BPFProgram implements BaseScheduler
          * Limit the amount of budget that an idling task can accumulate
          * to one slice.
          */
-        if (isSmaller(vtime, vtime_now.get() - SCX_SLICE_DFL.value())) {
-            vtime = vtime_now.get() - SCX_SLICE_DFL.value();
+        @Unsigned long maxBudget = schedulerSetting.get().sliceLength();
+        if (isSmaller(vtime, vtime_now.get() - maxBudget)) {
+            vtime = vtime_now.get() - maxBudget;
+        }
+        scx_bpf_dsq_insert_vtime(p, dsqId, sliceLength, vtime, enq_flags);
+        if (cpu >= 0) {
+            scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE.value());
         }
-        scx_bpf_dsq_insert_vtime(p, SHARED_DSQ_ID, SCX_SLICE_DFL.value(), vtime, enq_flags);
     }
 
+    /** Send the slice that ends on the current CPU to the slice events, if it is sampled */
     @BPFFunction
     @AlwaysInline
-    public boolean tryDispatching(Ptr<BpfDefinitions.bpf_iter_scx_dsq> iter, Ptr<TaskDefinitions.task_struct> p, int cpu) {
-        // check if the CPU is usable by the task
-        if (!bpf_cpumask_test_cpu(cpu, p.val().cpus_ptr)) {
-            return false;
+    void traceSlice(Ptr<TaskDefinitions.task_struct> p, boolean preempted) {
+        int cpu = bpf_get_smp_processor_id();
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        if (cpuStat == null || !isSliceTraced(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid))) {
+            return;
+        }
+        Ptr<SliceEvent> event = sliceEvents.reserve();
+        if (event == null) {
+            // userspace doesn't keep up
+            cpuStat.val().droppedSliceEvents += 1;
+            return;
         }
-        return scx_bpf_dsq_move(iter, p, SCX_DSQ_LOCAL_ON.value() | cpu, SCX_ENQ_PREEMPT.value());
+        fillSliceEvent(event, p, cpu, cpuStat, preempted);
+        sliceEvents.submit(event);
     }
 
     @Override
     public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
-        boolean canScheduleNonKThreads = schedulerSetting.get().cores() != -1 && schedulerSetting.get().cores() > cpu;
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
+        // tasks pinned to a CPU are in the queue of their CPU, which is therefore consumed first
+        if (cpu < MAX_CPUS && scx_bpf_dsq_move_to_local(CPU_DSQ_BASE + cpu)) {
+            return;
+        }
+        Ptr<CpuStat> cpuStat = cpuStats.bpf_get(cpu);
+        boolean canScheduleNonKThreads = canRunUnconstrainedTasks(schedulerSetting.get().cores(), cpu);
+        // boosted tasks come before the shared queue, as long as they don't exceed their share
+        if (canScheduleNonKThreads && isWithinBoostShare(cpuStat, schedulerSetting.get().boostShare())
+                && scx_bpf_dsq_move_to_local(BOOST_DSQ_ID)) {
+            return;
+        }
         Ptr<TaskDefinitions.task_struct> p = null;
         bpf_for_each_dsq(SHARED_DSQ_ID, p, iter -> {
             if ((hasConstraints(p) || canScheduleNonKThreads) && tryDispatching(iter, p, cpu)) {
+                recordScanStep(cpuStat, false);
                 return;
             }
+            recordScanStep(cpuStat, true);
         });
+        if (canScheduleNonKThreads) {
+            scx_bpf_dsq_move_to_local(BOOST_DSQ_ID);
+        }
+    }
+
+    /** Sample the queues regularly on busy CPUs too, which don't dispatch */
+    @Override
+    public void tick(Ptr<TaskDefinitions.task_struct> p) {
+        int cpu = bpf_get_smp_processor_id();
+        sampleQueueDepths(cpuStats.bpf_get(cpu), cpu);
     }
 
     @Override
@@ -121,15 +193,18 @@ public abstract class VTimeScheduler extends BPFProgram implements BaseScheduler
         }
         Ptr<TaskStat> stat = null;
         getTaskStat(p, Ptr.of(stat));
-        if (stat != null) {
-            stat.val().currentlyRunning = true;
-            stat.val().dispatches = stat.val().dispatches + 1;
-            stat.val().lastStartNs = bpf_ktime_get_ns();
-        }
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        @Unsigned long now = bpf_ktime_get_ns();
+        @Unsigned long waitNs = getWaitNs(enqueuedAt.bpf_get(p.val().pid), now);
+        enqueuedAt.put(p.val().pid, 0L);
+        accountRunning(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()), now, waitNs,
+                isBoosted(schedulerSetting.get(), filteredProcesses.bpf_get(p.val().tgid)));
     }
 
     @Override
     public void stopping(Ptr<TaskDefinitions.task_struct> p, boolean runnable) {
+        traceSlice(p, runnable);
         /*
          * Scale the execution time by the inverse of the weight and charge.
          *
@@ -141,12 +216,10 @@ public abstract class VTimeScheduler extends BPFProgram implements BaseScheduler
          */
         Ptr<TaskStat> stat = null;
         getTaskStat(p, Ptr.of(stat));
-        if (stat == null) {
-            return;
-        }
-        stat.val().currentlyRunning = false;
-        @Unsigned long runtimeNs = bpf_ktime_get_ns() - stat.val().lastStartNs;
-        stat.val().runtimeNs = stat.val().runtimeNs + runtimeNs;
+        Ptr<TaskStat> threadStat = null;
+        getThreadStat(p, Ptr.of(threadStat));
+        @Unsigned long runtimeNs = accountStopping(p, stat, threadStat, cpuStats.bpf_get(bpf_get_smp_processor_id()),
+                runnable, false);
 
         p.val().scx.dsq_vtime += runtimeNs / p.val().scx.weight;
 
@@ -166,4 +239,24 @@ public abstract class VTimeScheduler extends BPFProgram implements BaseScheduler
     public BPFHashMap<@Unsigned Integer, TaskStat> getTaskStats() {
         return taskStats;
     }
+
+    @Override
+    public BPFHashMap<@Unsigned Long, TaskStat> getThreadStats() {
+        return threadStats;
+    }
+
+    @Override
+    public BPFArray<CpuStat> getCpuStats() {
+        return cpuStats;
+    }
+
+    @Override
+    public BPFRingBuffer<SliceEvent> getSliceEvents() {
+        return sliceEvents;
+    }
+
+    @Override
+    public BPFHashMap<@Unsigned Integer, Boolean> getFilteredProcesses() {
+        return filteredProcesses;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package me.bechberger.sos.trace;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table from pids to their last recorded values, doesn't allocate unless it grows
+ * <p>
+ * Growing drops the pids that weren't recorded in the current or the previous tick. A dropped pid that is recorded
+ * again starts with zero values and is marked as {@link #reset}, so that the reader drops its old values too.
+ */
+final class PidTable {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int MIN_CAPACITY = 1024;
+
+    private int[] pids;
+    long[] runtimeNs;
+    long[] dispatches;
+    String[] comms;
+    /** Segment that the comm was last written to */
+    int[] commSegments;
+    /** Was the pid added since the last tick was written, so that its values start at zero? */
+    boolean[] reset;
+    private long[] lastTicks;
+    private int size = 0;
+
+    PidTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        pids = new int[capacity];
+        Arrays.fill(pids, EMPTY);
+        runtimeNs = new long[capacity];
+        dispatches = new long[capacity];
+        comms = new String[capacity];
+        commSegments = new int[capacity];
+        reset = new boolean[capacity];
+        lastTicks = new long[capacity];
+        size = 0;
+    }
+
+    private int index(int pid) {
+        int mask = pids.length - 1;
+        int index = (pid * 0x9E3779B9) & mask;
+        while (pids[index] != EMPTY && pids[index] != pid) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /** Slot of the pid, -1 if it isn't in the table */
+    int find(int pid) {
+        int index = index(pid);
+        return pids[index] == EMPTY ? -1 : index;
+    }
+
+    /** Slot of the pid, which is added if needed, and mark it as recorded in the passed tick */
+    int slot(int pid, long tick) {
+        int index = index(pid);
+        if (pids[index] == EMPTY) {
+            if ((size + 1) * 2 > pids.length) {
+                grow(tick);
+                index = index(pid);
+            }
+            pids[index] = pid;
+            runtimeNs[index] = 0;
+            dispatches[index] = 0;
+            comms[index] = null;
+            commSegments[index] = -1;
+            reset[index] = true;
+            size++;
+        }
+        lastTicks[index] = tick;
+        return index;
+    }
+
+    private void grow(long tick) {
+        int[] oldPids = pids;
+        long[] oldRuntimeNs = runtimeNs;
+        long[] oldDispatches = dispatches;
+        String[] oldComms = comms;
+        int[] oldCommSegments = commSegments;
+        boolean[] oldReset = reset;
+        long[] oldLastTicks = lastTicks;
+        int kept = 0;
+        for (int i = 0; i < oldPids.length; i++) {
+            if (oldPids[i] != EMPTY && oldLastTicks[i] >= tick - 1) {
+                kept++;
+            }
+        }
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(kept * 4) * 2));
+        for (int i = 0; i < oldPids.length; i++) {
+            if (oldPids[i] != EMPTY && oldLastTicks[i] >= tick - 1) {
+                int index = index(oldPids[i]);
+                pids[index] = oldPids[i];
+                runtimeNs[index] = oldRuntimeNs[i];
+                dispatches[index] = oldDispatches[i];
+                comms[index] = oldComms[i];
+                commSegments[index] = oldCommSegments[i];
+                reset[index] = oldReset[i];
+                lastTicks[index] = oldLastTicks[i];
+                size++;
+            }
+        }
+    }
+}
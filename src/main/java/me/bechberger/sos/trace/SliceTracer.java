@@ -0,0 +1,155 @@
+package me.bechberger.sos.trace;
+
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.sos.scheduler.BaseScheduler.SliceEvent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Consumes the slice events of a scheduler on its own thread and streams them into a trace file
+ * in the Chrome JSON trace event format, which can be opened in Perfetto (https://ui.perfetto.dev)
+ * <p>
+ * Every slice is shown twice: in the lane of its thread (grouped by process) and in the lane of its CPU
+ * (in the "CPUs" process). Preempted slices, i.e. slices after which the task was still runnable,
+ * have the category "preempted", the others "blocked". The events are written as they come,
+ * so the memory usage is bounded by the ring buffer.
+ */
+public class SliceTracer implements AutoCloseable {
+
+    /** Pid of the process that contains the CPU lanes */
+    private static final int CPUS_PID = 0;
+    /** Threads whose names are remembered, the names are written again after this many threads */
+    private static final int MAX_NAMED_THREADS = 100_000;
+    private static final long POLL_INTERVAL_MS = 1;
+
+    private final BPFRingBuffer<SliceEvent> sliceEvents;
+    private final BufferedWriter writer;
+    private final Thread thread;
+    private final Set<Long> namedThreads = new HashSet<>();
+    private final Set<Integer> namedCpus = new HashSet<>();
+    private final StringBuilder line = new StringBuilder();
+    private volatile boolean running = true;
+    private boolean firstEvent = true;
+    private volatile long events = 0;
+
+    public SliceTracer(BPFRingBuffer<SliceEvent> sliceEvents, Path file) throws IOException {
+        this.sliceEvents = sliceEvents;
+        this.writer = Files.newBufferedWriter(file);
+        writer.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+        writeMetadata("process_name", CPUS_PID, 0, "CPUs");
+        sliceEvents.setCallback((buffer, event) -> {
+            try {
+                write(event);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread = new Thread(this::consume, "slice-tracer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void consume() {
+        while (running) {
+            sliceEvents.consumeAndThrow();
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void write(SliceEvent event) throws IOException {
+        if (!namedCpus.contains(event.cpu)) {
+            namedCpus.add(event.cpu);
+            writeMetadata("thread_name", CPUS_PID, event.cpu, "CPU " + event.cpu);
+        }
+        long thread = ((long) event.tgid << 32) | event.pid;
+        if (!namedThreads.contains(thread)) {
+            if (namedThreads.size() >= MAX_NAMED_THREADS) {
+                namedThreads.clear();
+            }
+            namedThreads.add(thread);
+            if (event.pid == event.tgid) {
+                writeMetadata("process_name", event.tgid, event.pid, event.comm);
+            }
+            writeMetadata("thread_name", event.tgid, event.pid, event.comm);
+        }
+        String category = event.preempted ? "preempted" : "blocked";
+        writeSlice(event.comm, category, event, event.tgid, event.pid);
+        writeSlice(event.comm + " " + event.pid, category, event, CPUS_PID, event.cpu);
+        events++;
+    }
+
+    private void writeSlice(String name, String category, SliceEvent event, int pid, int tid) throws IOException {
+        startEvent();
+        line.append("{\"ph\":\"X\",\"name\":");
+        appendString(name);
+        line.append(",\"cat\":\"").append(category).append("\",\"ts\":")
+                .append(String.format(Locale.ROOT, "%.3f", event.startNs / 1000.0))
+                .append(",\"dur\":").append(String.format(Locale.ROOT, "%.3f", (event.endNs - event.startNs) / 1000.0))
+                .append(",\"pid\":").append(pid).append(",\"tid\":").append(tid)
+                .append(",\"args\":{\"cpu\":").append(event.cpu).append(",\"preempted\":").append(event.preempted)
+                .append("}}");
+        writer.append(line);
+    }
+
+    private void writeMetadata(String type, int pid, int tid, String name) throws IOException {
+        startEvent();
+        line.append("{\"ph\":\"M\",\"name\":\"").append(type).append("\",\"pid\":").append(pid)
+                .append(",\"tid\":").append(tid).append(",\"args\":{\"name\":");
+        appendString(name);
+        line.append("}}");
+        writer.append(line);
+    }
+
+    private void startEvent() {
+        line.setLength(0);
+        if (!firstEvent) {
+            line.append(",\n");
+        }
+        firstEvent = false;
+    }
+
+    private void appendString(String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /** Number of written slices */
+    public long getEvents() {
+        return events;
+    }
+
+    /** Stop consuming, write the remaining events and finish the file */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sliceEvents.consumeAndThrow();
+        writer.write("\n]}\n");
+        writer.close();
+    }
+}
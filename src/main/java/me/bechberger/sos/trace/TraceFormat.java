@@ -0,0 +1,57 @@
+package me.bechberger.sos.trace;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Binary trace format, all values are little endian
+ * <p>
+ * A recording consists of segment files {@code <name>.00000}, {@code <name>.00001}, ..., every segment starts
+ * with the magic number and the version (both ints), followed by records that start with their type byte:
+ * <ul>
+ *     <li>{@link #COMM}: pid (int), length (unsigned byte), UTF-8 bytes of the comm.
+ *     Written before the first tick in a segment that contains the pid and whenever the comm changes</li>
+ *     <li>{@link #RESET}: pid (int). Written before a tick whose row of the pid starts at zero instead of
+ *     the previous row, e.g. because the recorder dropped the pid in between</li>
+ *     <li>{@link #TICK}: timestamp in ns (long), number of rows (int), followed by the columns:
+ *     pids (ints), runtime deltas in ns (longs), dispatch deltas (longs)</li>
+ *     <li>{@link #END}: the rest of the segment is unused</li>
+ * </ul>
+ * The deltas are relative to the previous row of the same pid in the recording, since its last reset.
+ */
+final class TraceFormat {
+
+    static final int MAGIC = 0x54534f53; // "SOST"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    static final byte END = 0;
+    static final byte COMM = 1;
+    static final byte TICK = 2;
+    static final byte RESET = 3;
+
+    static final int COMM_HEADER_SIZE = 1 + 4 + 1;
+    static final int RESET_SIZE = 1 + 4;
+    static final int TICK_HEADER_SIZE = 1 + 8 + 4;
+    static final int ROW_SIZE = 4 + 8 + 8;
+
+    private TraceFormat() {
+    }
+
+    static Path segmentPath(Path base, int index) {
+        return base.resolveSibling(base.getFileName() + "." + String.format("%05d", index));
+    }
+
+    /** Existing segments of the recording, sorted by their index */
+    static List<Path> segments(Path base) throws IOException {
+        var pattern = Pattern.compile(Pattern.quote(base.getFileName().toString()) + "\\.\\d{5}");
+        Path directory = base.toAbsolutePath().getParent();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> pattern.matcher(p.getFileName().toString()).matches()).sorted().toList();
+        }
+    }
+}
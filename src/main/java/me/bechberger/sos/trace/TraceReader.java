@@ -0,0 +1,152 @@
+package me.bechberger.sos.trace;
+
+import me.bechberger.sos.ScoredProcesses;
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+import me.bechberger.sos.util.ProcessSet;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static me.bechberger.sos.trace.TraceFormat.*;
+
+/**
+ * Reads a recording of the {@link TraceRecorder} tick by tick
+ * <p>
+ * The stats of every tick are new {@link TaskStat} objects with the cumulative values,
+ * like the stats read from the scheduler.
+ */
+public class TraceReader {
+
+    /**
+     * @param timestampNs time since the first recorded tick
+     * @param stats       stats of the processes recorded in this tick
+     */
+    public record Tick(long timestampNs, Map<Integer, TaskStat> stats) {
+    }
+
+    private final List<Path> segments;
+    private int segmentIndex = -1;
+    private MappedByteBuffer buffer;
+    private final Map<Integer, String> comms = new HashMap<>();
+    private final Map<Integer, TaskStat> lastStats = new HashMap<>();
+
+    public TraceReader(Path base) throws IOException {
+        this.segments = TraceFormat.segments(base);
+        if (segments.isEmpty()) {
+            throw new NoSuchFileException(base.toString(), null, "No recording");
+        }
+    }
+
+    private boolean openNextSegment() throws IOException {
+        if (segmentIndex + 1 >= segments.size()) {
+            return false;
+        }
+        segmentIndex++;
+        Path path = segments.get(segmentIndex);
+        try (var channel = FileChannel.open(path, READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a recording: " + path);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version + " of " + path);
+        }
+        return true;
+    }
+
+    /** Read the next tick, null at the end of the recording */
+    public Tick next() throws IOException {
+        while (true) {
+            if (buffer == null || !buffer.hasRemaining()) {
+                if (!openNextSegment()) {
+                    return null;
+                }
+                continue;
+            }
+            byte type = buffer.get();
+            switch (type) {
+                case COMM -> {
+                    int pid = buffer.getInt();
+                    byte[] comm = new byte[buffer.get() & 0xff];
+                    buffer.get(comm);
+                    comms.put(pid, new String(comm, StandardCharsets.UTF_8));
+                }
+                case RESET -> lastStats.remove(buffer.getInt());
+                case TICK -> {
+                    return readTick();
+                }
+                // the recording stopped before the segment was finished
+                case END -> buffer.position(buffer.limit());
+                default -> throw new IOException("Unknown record type " + type + " in " + segments.get(segmentIndex));
+            }
+        }
+    }
+
+    private Tick readTick() {
+        long timestampNs = buffer.getLong();
+        int rows = buffer.getInt();
+        int[] pids = new int[rows];
+        int start = buffer.position();
+        for (int i = 0; i < rows; i++) {
+            pids[i] = buffer.getInt(start + i * 4);
+        }
+        int runtimeStart = start + rows * 4;
+        int dispatchesStart = runtimeStart + rows * 8;
+        Map<Integer, TaskStat> stats = new HashMap<>(rows * 2);
+        for (int i = 0; i < rows; i++) {
+            var last = lastStats.get(pids[i]);
+            var stat = new TaskStat();
+            stat.comm = comms.getOrDefault(pids[i], "");
+            stat.runtimeNs = (last == null ? 0 : last.runtimeNs) + buffer.getLong(runtimeStart + i * 8);
+            stat.dispatches = (last == null ? 0 : last.dispatches) + buffer.getLong(dispatchesStart + i * 8);
+            stats.put(pids[i], stat);
+            lastStats.put(pids[i], stat);
+        }
+        buffer.position(dispatchesStart + rows * 8);
+        return new Tick(timestampNs, stats);
+    }
+
+    /**
+     * Replay the rest of the recording into the scored processes
+     *
+     * @param speed     speed relative to the recording, 0 replays as fast as possible
+     * @param afterTick called after every replayed tick
+     * @return number of replayed ticks
+     */
+    public int replay(ScoredProcesses scoredProcesses, double speed, Consumer<Tick> afterTick)
+            throws IOException, InterruptedException {
+        var all = new ProcessSet(List.of());
+        long startNs = System.nanoTime();
+        long firstTimestampNs = -1;
+        int ticks = 0;
+        for (Tick tick = next(); tick != null; tick = next()) {
+            if (firstTimestampNs == -1) {
+                firstTimestampNs = tick.timestampNs();
+            }
+            if (speed > 0) {
+                long sleepNs = (long) ((tick.timestampNs() - firstTimestampNs) / speed) - (System.nanoTime() - startNs);
+                if (sleepNs > 0) {
+                    Thread.sleep(Duration.ofNanos(sleepNs));
+                }
+            }
+            scoredProcesses.update(tick.stats().entrySet(), all);
+            afterTick.accept(tick);
+            ticks++;
+        }
+        return ticks;
+    }
+}
@@ -0,0 +1,184 @@
+package me.bechberger.sos.trace;
+
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static me.bechberger.sos.trace.TraceFormat.*;
+
+/**
+ * Records the task stats of every tick as deltas in the {@link TraceFormat}
+ * <p>
+ * Writes to memory-mapped segment files, a new segment is started when the current one is full,
+ * the oldest segments are deleted if there are more than the maximum number of segments.
+ * Recording a tick doesn't allocate, besides encoding new comms and growing the internal tables.
+ */
+public class TraceRecorder implements AutoCloseable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private final Path base;
+    private final long segmentSize;
+    private final int maxSegments;
+    private final PidTable pidTable = new PidTable();
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int segment = -1;
+    private long tick = 0;
+    private long firstTimestampNs = -1;
+
+    /** Columns of the current tick, reused for all ticks */
+    private int[] rowPids = new int[1024];
+    private long[] rowRuntimeNs = new long[1024];
+    private long[] rowDispatches = new long[1024];
+    private int rows = 0;
+
+    /**
+     * @param base        path of the recording, the segments are stored next to it with a numeric suffix
+     * @param maxSegments number of segments that are kept, 0 keeps all
+     */
+    public TraceRecorder(Path base, long segmentSize, int maxSegments) throws IOException {
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        for (Path existing : TraceFormat.segments(base)) {
+            Files.delete(existing);
+        }
+        startSegment(0);
+    }
+
+    public TraceRecorder(Path base) throws IOException {
+        this(base, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * Record the stats of a tick
+     *
+     * @param timestampNs time of the tick, e.g. {@link System#nanoTime()}
+     * @param include     only the included processes are recorded
+     */
+    public void record(long timestampNs, Iterable<? extends Map.Entry<Integer, TaskStat>> stats,
+                       IntPredicate include) throws IOException {
+        if (firstTimestampNs == -1) {
+            firstTimestampNs = timestampNs;
+        }
+        tick++;
+        rows = 0;
+        for (var entry : stats) {
+            int pid = entry.getKey();
+            if (!include.test(pid)) {
+                continue;
+            }
+            var stat = entry.getValue();
+            int slot = pidTable.slot(pid, tick);
+            if (rows == rowPids.length) {
+                rowPids = Arrays.copyOf(rowPids, rows * 2);
+                rowRuntimeNs = Arrays.copyOf(rowRuntimeNs, rows * 2);
+                rowDispatches = Arrays.copyOf(rowDispatches, rows * 2);
+            }
+            rowPids[rows] = pid;
+            rowRuntimeNs[rows] = stat.runtimeNs - pidTable.runtimeNs[slot];
+            rowDispatches[rows] = stat.dispatches - pidTable.dispatches[slot];
+            pidTable.runtimeNs[slot] = stat.runtimeNs;
+            pidTable.dispatches[slot] = stat.dispatches;
+            if (!stat.comm.equals(pidTable.comms[slot])) {
+                pidTable.comms[slot] = stat.comm;
+                pidTable.commSegments[slot] = -1;
+            }
+            rows++;
+        }
+        if (maxTickSize(false) > buffer.remaining()) {
+            // all comms have to be written again in the new segment
+            startSegment(maxTickSize(true));
+        }
+        writeTick(timestampNs - firstTimestampNs);
+    }
+
+    /** Upper bound of the size of the current tick, including the comms that have to be written */
+    private long maxTickSize(boolean allComms) {
+        long size = TICK_HEADER_SIZE + (long) rows * ROW_SIZE;
+        for (int i = 0; i < rows; i++) {
+            int slot = pidTable.find(rowPids[i]);
+            if (pidTable.reset[slot]) {
+                size += RESET_SIZE;
+            }
+            if (allComms || pidTable.commSegments[slot] != segment) {
+                size += COMM_HEADER_SIZE + pidTable.comms[slot].length() * 3L;
+            }
+        }
+        return size;
+    }
+
+    private void writeTick(long timestampNs) {
+        for (int i = 0; i < rows; i++) {
+            int slot = pidTable.find(rowPids[i]);
+            if (pidTable.commSegments[slot] != segment) {
+                byte[] comm = pidTable.comms[slot].getBytes(StandardCharsets.UTF_8);
+                int length = Math.min(comm.length, 255);
+                buffer.put(COMM).putInt(rowPids[i]).put((byte) length).put(comm, 0, length);
+                pidTable.commSegments[slot] = segment;
+            }
+            if (pidTable.reset[slot]) {
+                buffer.put(RESET).putInt(rowPids[i]);
+                pidTable.reset[slot] = false;
+            }
+        }
+        buffer.put(TICK).putLong(timestampNs).putInt(rows);
+        for (int i = 0; i < rows; i++) {
+            buffer.putInt(rowPids[i]);
+        }
+        for (int i = 0; i < rows; i++) {
+            buffer.putLong(rowRuntimeNs[i]);
+        }
+        for (int i = 0; i < rows; i++) {
+            buffer.putLong(rowDispatches[i]);
+        }
+    }
+
+    /**
+     * Start a new segment
+     *
+     * @param minSize minimum space for records, the segment is larger than usual if needed
+     */
+    private void startSegment(long minSize) throws IOException {
+        finishSegment();
+        segment++;
+        channel = FileChannel.open(TraceFormat.segmentPath(base, segment), CREATE, TRUNCATE_EXISTING, READ, WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, HEADER_SIZE + minSize));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        if (maxSegments > 0 && segment >= maxSegments) {
+            Files.deleteIfExists(TraceFormat.segmentPath(base, segment - maxSegments));
+        }
+    }
+
+    /** Flush the current segment and cut off the unused rest */
+    private void finishSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.force();
+        channel.truncate(buffer.position());
+        channel.close();
+        channel = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finishSegment();
+    }
+}
@@ -0,0 +1,46 @@
+package me.bechberger.sos.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Resolves cgroup ids (the inode numbers of the cgroup directories) to cgroup paths, the cgroup tree is only
+ * walked again if an unknown id is requested and the last walk is at least a second old
+ */
+public class CgroupNames {
+
+    private static final Path CGROUP_ROOT = Path.of("/sys/fs/cgroup");
+    private static final long MIN_WALK_INTERVAL_NS = 1_000_000_000L;
+
+    private final Map<Long, String> names = new HashMap<>();
+    private long lastWalkNs = System.nanoTime() - MIN_WALK_INTERVAL_NS;
+
+    public String get(long id) {
+        String name = names.get(id);
+        if (name == null && System.nanoTime() - lastWalkNs >= MIN_WALK_INTERVAL_NS) {
+            walk();
+            name = names.get(id);
+        }
+        return name == null ? Long.toString(id) : name;
+    }
+
+    private void walk() {
+        lastWalkNs = System.nanoTime();
+        try (Stream<Path> paths = Files.walk(CGROUP_ROOT)) {
+            paths.filter(Files::isDirectory).forEach(path -> {
+                try {
+                    long inode = ((Number) Files.getAttribute(path, "unix:ino")).longValue();
+                    names.put(inode, "/" + CGROUP_ROOT.relativize(path));
+                } catch (IOException | UnsupportedOperationException e) {
+                    // cgroup removed in the meantime or no inode support, just use the id
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            // no cgroup2 file system
+        }
+    }
+}
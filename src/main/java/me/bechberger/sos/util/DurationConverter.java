@@ -5,25 +5,36 @@ import picocli.CommandLine;
 public class DurationConverter implements CommandLine.ITypeConverter<Integer> {
     @Override
     public Integer convert(String value) {
-        return parseToNanoSeconds(value);
+        return (int) parseToNanoSeconds(value);
+    }
+
+    /** Converter for durations that might be longer than an int can hold in ns (around 2s) */
+    public static class LongDurationConverter implements CommandLine.ITypeConverter<Long> {
+        @Override
+        public Long convert(String value) {
+            return parseToNanoSeconds(value);
+        }
     }
 
     /**
      * Parse any duration string to time, support "s" and "ms" and fractions and fractions
      */
-    private static int parseToNanoSeconds(String text) {
+    private static long parseToNanoSeconds(String text) {
         if (!text.matches("[0-9]+(\\.[0-9]+)?(ms|us|ns|s)")) {
             throw new IllegalArgumentException("Invalid duration string: " + text);
         }
         int unit = 1_000_000_000;
+        int suffixLength = 2;
         if (text.endsWith("ms")) {
             unit = 1_000_000;
         } else if (text.endsWith("us")) {
             unit = 1_000;
         } else if (text.endsWith("ns")) {
             unit = 1;
+        } else {
+            suffixLength = 1;
         }
-        return (int) (Double.parseDouble(text.substring(0, text.length() - 2)) * unit);
+        return (long) (Double.parseDouble(text.substring(0, text.length() - suffixLength)) * unit);
     }
 
     public static String nanoSecondsToString(long nanoSeconds, int decimals) {
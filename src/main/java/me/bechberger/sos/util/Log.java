@@ -0,0 +1,147 @@
+package me.bechberger.sos.util;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Console output that is written by a background thread, so that the sampling and the music don't wait for the
+ * console
+ * <p>
+ * Messages are put into a bounded lock-free queue, messages that don't fit are dropped. Verbose messages are
+ * only logged with {@link #setVerbose(boolean)} and at most {@link #VERBOSE_PER_SECOND} per second, their text is
+ * created on the background thread, so expensive lookups (e.g. of the command of a process) are done there too.
+ * The number of dropped and suppressed messages is reported every second.
+ */
+public final class Log {
+
+    private static final int CAPACITY = 4096;
+    public static final int VERBOSE_PER_SECOND = 100;
+    private static final long WRITE_INTERVAL_NS = 10_000_000;
+    private static final long REPORT_INTERVAL_NS = 1_000_000_000;
+
+    private record Entry(boolean error, Supplier<String> message) {
+    }
+
+    private static final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    /** Entries that are queued or currently written */
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong suppressed = new AtomicLong();
+    private static final AtomicLong verboseWindowStartNs = new AtomicLong(System.nanoTime());
+    private static final AtomicInteger verboseInWindow = new AtomicInteger();
+    private static volatile boolean verbose = false;
+
+    private static final PrintStream out =
+            new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private static final PrintStream err =
+            new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 12), false);
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    public static void setVerbose(boolean verbose) {
+        Log.verbose = verbose;
+    }
+
+    public static boolean isVerbose() {
+        return verbose;
+    }
+
+    public static void info(String message) {
+        enqueue(false, () -> message);
+    }
+
+    public static void error(String message) {
+        enqueue(true, () -> message);
+    }
+
+    /**
+     * Log a verbose message, if enabled and not rate-limited
+     *
+     * @param message creates the message on the background thread, must only use values captured at the call
+     */
+    public static void verbose(Supplier<String> message) {
+        if (!verbose) {
+            return;
+        }
+        if (!tryAcquireVerbose()) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        enqueue(false, message);
+    }
+
+    private static boolean tryAcquireVerbose() {
+        long now = System.nanoTime();
+        long start = verboseWindowStartNs.get();
+        if (now - start >= 1_000_000_000 && verboseWindowStartNs.compareAndSet(start, now)) {
+            verboseInWindow.set(0);
+        }
+        return verboseInWindow.incrementAndGet() <= VERBOSE_PER_SECOND;
+    }
+
+    private static void enqueue(boolean error, Supplier<String> message) {
+        if (pending.incrementAndGet() > CAPACITY) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Entry(error, message));
+    }
+
+    private static void write() {
+        long lastReport = System.nanoTime();
+        while (true) {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                String text;
+                try {
+                    text = entry.message().get();
+                } catch (RuntimeException e) {
+                    text = "Can't create log message: " + e;
+                }
+                (entry.error() ? err : out).println(text);
+                pending.decrementAndGet();
+            }
+            long now = System.nanoTime();
+            if (now - lastReport >= REPORT_INTERVAL_NS) {
+                lastReport = now;
+                long droppedMessages = dropped.getAndSet(0);
+                long suppressedMessages = suppressed.getAndSet(0);
+                if (droppedMessages > 0 || suppressedMessages > 0) {
+                    err.println("Log: dropped " + droppedMessages + " messages, suppressed " + suppressedMessages +
+                            " verbose messages");
+                }
+            }
+            out.flush();
+            err.flush();
+            LockSupport.parkNanos(WRITE_INTERVAL_NS);
+        }
+    }
+
+    /** Wait (at most a second) until the queued messages are written, e.g. before exiting */
+    public static void flush() {
+        long deadline = System.nanoTime() + 1_000_000_000;
+        while (pending.get() > 0 && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(1_000_000);
+        }
+        // the last messages might still be in the buffers
+        LockSupport.unpark(writer);
+        LockSupport.parkNanos(WRITE_INTERVAL_NS);
+    }
+}
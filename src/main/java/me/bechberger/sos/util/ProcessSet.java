@@ -18,17 +18,12 @@ public class ProcessSet {
 
     public void update() {
         if (filterWords.isEmpty()) {
-            filteredIds.clear();
-            filteredIds.addAll(ProcessHandle.allProcesses().map(ProcessHandle::pid).map(Long::intValue).collect(Collectors.toSet()));
+            // every process is contained, no need to list them
             return;
         }
         filteredIds.clear();
-        var startProcesses = ProcessHandle.allProcesses().filter(p -> {
-            if (filterWords.isEmpty()) {
-                return true;
-            }
-            return filterWords.stream().anyMatch(f -> p.info().command().orElse("").contains(f));
-        }).toList();
+        var startProcesses = ProcessHandle.allProcesses().filter(p ->
+                filterWords.stream().anyMatch(f -> p.info().command().orElse("").contains(f))).toList();
         Set<ProcessHandle> children = new HashSet<>();
         for (ProcessHandle process : startProcesses) {
             if (!children.contains(process)) {
@@ -47,7 +42,13 @@ public class ProcessSet {
         });
     }
 
+    /** Is the process filtered, always true without filter words */
     public boolean contains(int pid) {
-        return filteredIds.contains(pid);
+        return filterWords.isEmpty() || filteredIds.contains(pid);
+    }
+
+    /** Copy of the ids of the filtered processes, empty without filter words */
+    public Set<Integer> getIds() {
+        return Set.copyOf(filteredIds);
     }
 }
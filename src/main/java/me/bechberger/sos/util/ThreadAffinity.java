@@ -0,0 +1,40 @@
+package me.bechberger.sos.util;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/** Pins threads to CPUs via sched_setaffinity */
+public class ThreadAffinity {
+
+    private static final MethodHandle SCHED_SETAFFINITY;
+
+    static {
+        var linker = Linker.nativeLinker();
+        SCHED_SETAFFINITY = linker.downcallHandle(linker.defaultLookup().find("sched_setaffinity").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG,
+                        ValueLayout.ADDRESS));
+    }
+
+    /**
+     * Pin the current thread to the CPU
+     *
+     * @return true if it worked
+     */
+    public static boolean pinCurrentThread(int cpu) {
+        if (cpu < 0) {
+            return false;
+        }
+        try (var arena = Arena.ofConfined()) {
+            int words = cpu / 64 + 1;
+            var mask = arena.allocate(8L * words, 8);
+            mask.setAtIndex(ValueLayout.JAVA_LONG, cpu / 64, 1L << (cpu % 64));
+            // pid 0 is the calling thread
+            return (int) SCHED_SETAFFINITY.invokeExact(0, mask.byteSize(), mask) == 0;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package me.bechberger.sos.workload;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Records latencies of a single thread, keeps a uniform sample (reservoir sampling) when there are too many
+ */
+public class LatencyRecorder {
+
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final SplittableRandom random = new SplittableRandom();
+    private long[] samples = new long[1024];
+    private int size = 0;
+    private long count = 0;
+    private long maxNs = 0;
+
+    public void record(long latencyNs) {
+        count++;
+        maxNs = Math.max(maxNs, latencyNs);
+        if (size < samples.length) {
+            samples[size++] = latencyNs;
+        } else if (size < MAX_SAMPLES) {
+            samples = Arrays.copyOf(samples, Math.min(MAX_SAMPLES, samples.length * 2));
+            samples[size++] = latencyNs;
+        } else {
+            long index = random.nextLong(count);
+            if (index < size) {
+                samples[(int) index] = latencyNs;
+            }
+        }
+    }
+
+    /** Number of recorded latencies */
+    public long count() {
+        return count;
+    }
+
+    /** Combine the recorders of multiple threads into sorted samples */
+    static Latencies combine(Iterable<LatencyRecorder> recorders) {
+        int total = 0;
+        long count = 0;
+        long maxNs = 0;
+        for (var recorder : recorders) {
+            total += recorder.size;
+            count += recorder.count;
+            maxNs = Math.max(maxNs, recorder.maxNs);
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (var recorder : recorders) {
+            System.arraycopy(recorder.samples, 0, all, offset, recorder.size);
+            offset += recorder.size;
+        }
+        Arrays.sort(all);
+        return new Latencies(all, count, maxNs);
+    }
+
+    /**
+     * Sorted latency samples
+     *
+     * @param count number of recorded latencies, more than the samples if the recorders sampled
+     * @param maxNs largest latency, even if it isn't in the samples
+     */
+    record Latencies(long[] sorted, long count, long maxNs) {
+
+        boolean isEmpty() {
+            return sorted.length == 0;
+        }
+
+        /** Percentile (0 to 100) of the samples, 0 if there are none */
+        long percentile(double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
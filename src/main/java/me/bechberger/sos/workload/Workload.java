@@ -0,0 +1,186 @@
+package me.bechberger.sos.workload;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Synthetic workloads that stress different parts of a scheduler, each runs in its own threads of this JVM
+ * <p>
+ * Every workload counts operations per thread (for the throughput and the fairness between the threads)
+ * and records the latencies that matter for it, if there are any.
+ */
+public enum Workload {
+
+    /** CPU-bound threads that compute in chunks, no latencies */
+    SPINNERS("CPU-bound threads, operation: 50us of computation") {
+        @Override
+        void start(WorkloadRun run) {
+            for (int i = 0; i < run.threads(); i++) {
+                run.spawn("spinner", worker -> {
+                    while (worker.isRunning()) {
+                        compute(CHUNK_ITERATIONS);
+                        worker.operation();
+                    }
+                });
+            }
+        }
+    },
+
+    /** Threads that start short-lived processes, stresses forking and the enqueueing of new tasks */
+    FORK_STORM("Threads that start processes, latency: start until exit of a process") {
+        @Override
+        void start(WorkloadRun run) {
+            for (int i = 0; i < run.threads(); i++) {
+                run.spawn("forker", worker -> {
+                    var builder = new ProcessBuilder("true").redirectErrorStream(true)
+                            .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+                    while (worker.isRunning()) {
+                        long start = System.nanoTime();
+                        builder.start().waitFor();
+                        worker.operation(System.nanoTime() - start);
+                    }
+                });
+            }
+        }
+    },
+
+    /** Threads of a pool that do short critical sections on a shared lock, with some work outside */
+    LOCK_POOL("Thread pool contending on a lock, latency: time to acquire the lock") {
+        @Override
+        void start(WorkloadRun run) {
+            var lock = new ReentrantLock();
+            for (int i = 0; i < run.threads(); i++) {
+                run.spawn("locker", worker -> {
+                    while (worker.isRunning()) {
+                        long start = System.nanoTime();
+                        lock.lock();
+                        long acquiredNs = System.nanoTime() - start;
+                        try {
+                            compute(CHUNK_ITERATIONS / 25);
+                        } finally {
+                            lock.unlock();
+                        }
+                        worker.operation(acquiredNs);
+                        compute(CHUNK_ITERATIONS / 5);
+                    }
+                });
+            }
+        }
+    },
+
+    /** Pairs of threads that wake each other up in turns */
+    PING_PONG("Pairs of threads waking each other, latency: wakeup until running") {
+        @Override
+        void start(WorkloadRun run) {
+            for (int pair = 0; pair < Math.max(1, run.threads() / 2); pair++) {
+                // time at which each side was signaled, 0 if it wasn't
+                var signals = new AtomicLongArray(2);
+                var sides = new Thread[2];
+                var started = new CountDownLatch(2);
+                for (int i = 0; i < 2; i++) {
+                    int side = i;
+                    run.spawn("ping-pong", worker -> {
+                        sides[side] = Thread.currentThread();
+                        started.countDown();
+                        started.await();
+                        int other = 1 - side;
+                        if (side == 0) {
+                            signals.set(other, System.nanoTime());
+                            LockSupport.unpark(sides[other]);
+                        }
+                        while (worker.isRunning()) {
+                            long signaledNs;
+                            while ((signaledNs = signals.getAndSet(side, 0)) == 0) {
+                                if (!worker.isRunning()) {
+                                    return;
+                                }
+                                LockSupport.parkNanos(WorkloadRun.MAX_WAIT_NS);
+                            }
+                            worker.operation(System.nanoTime() - signaledNs);
+                            signals.set(other, System.nanoTime());
+                            LockSupport.unpark(sides[other]);
+                        }
+                    });
+                }
+            }
+        }
+    },
+
+    /** Threads that handle a request every millisecond, while spinners keep all CPUs busy */
+    REQUEST_LOOP("Periodic requests on busy CPUs, latency: lateness of the request handling") {
+        @Override
+        void start(WorkloadRun run) {
+            for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+                run.spawnBackground("background-spinner-" + i, () -> {
+                    while (run.isRunning()) {
+                        compute(CHUNK_ITERATIONS);
+                    }
+                });
+            }
+            for (int i = 0; i < run.threads(); i++) {
+                run.spawn("requests", worker -> {
+                    long next = System.nanoTime() + REQUEST_PERIOD_NS;
+                    while (worker.isRunning()) {
+                        long now;
+                        while ((now = System.nanoTime()) < next) {
+                            LockSupport.parkNanos(next - now);
+                        }
+                        worker.operation(now - next);
+                        compute(CHUNK_ITERATIONS / 2);
+                        next += REQUEST_PERIOD_NS;
+                        if (next < System.nanoTime()) {
+                            // missed requests are dropped, their lateness is already recorded by this one
+                            next = System.nanoTime() + REQUEST_PERIOD_NS;
+                        }
+                    }
+                });
+            }
+        }
+    };
+
+    /** Iterations of {@link #compute(long)} that take around 50us */
+    private static final long CHUNK_ITERATIONS = 20_000;
+    private static final long REQUEST_PERIOD_NS = 1_000_000;
+
+    /** Keeps the computations from being optimized away */
+    private static volatile long sink;
+
+    private final String description;
+
+    Workload(String description) {
+        this.description = description;
+    }
+
+    public String description() {
+        return description;
+    }
+
+    /** Start the threads of the workload */
+    abstract void start(WorkloadRun run);
+
+    /**
+     * Run the workload in this JVM
+     *
+     * @param threads    number of threads, e.g. the number of measured threads
+     * @param warmupNs   time before measuring
+     * @param durationNs measured time
+     */
+    public WorkloadResult run(int threads, long warmupNs, long durationNs) throws Exception {
+        var run = new WorkloadRun(threads);
+        start(run);
+        return run.execute(this, warmupNs, durationNs);
+    }
+
+    private static void compute(long iterations) {
+        long value = iterations;
+        for (long i = 0; i < iterations; i++) {
+            // xorshift, unlike a linear congruential generator, can't be folded by the JIT
+            value ^= value << 13;
+            value ^= value >>> 7;
+            value ^= value << 17;
+        }
+        sink = value;
+    }
+}
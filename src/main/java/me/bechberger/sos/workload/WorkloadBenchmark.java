@@ -0,0 +1,200 @@
+package me.bechberger.sos.workload;
+
+import me.bechberger.sos.Main.SchedulerType;
+import me.bechberger.sos.scheduler.BaseScheduler;
+import me.bechberger.sos.scheduler.ManagedScheduler;
+import me.bechberger.sos.util.DurationConverter;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static me.bechberger.sos.util.DurationConverter.nanoSecondsToString;
+import static picocli.CommandLine.Option;
+
+/**
+ * Runs the {@link Workload}s under every scheduler type and slice length and writes a comparison report
+ * <p>
+ * The workloads run on the kernel's scheduler first, without loading a scheduler, which is the baseline
+ * of the report. Failing runs are reported and skipped, so it can run unattended.
+ */
+@CommandLine.Command(name = "workload-benchmark.sh", mixinStandardHelpOptions = true,
+        description = "Compare the schedulers with synthetic workloads")
+public class WorkloadBenchmark implements Runnable {
+
+    @Option(names = {"-t", "--types"}, split = ",", defaultValue = "FIFO,LOTTERY,VTIME,CGROUP,EDF,USERSPACE",
+            description = "Scheduler types to compare, only the BPF schedulers")
+    List<SchedulerType> types;
+
+    @Option(names = "--baseline", negatable = true, defaultValue = "true", fallbackValue = "true",
+            description = "Run the workloads on the kernel's scheduler as baseline, default: ${DEFAULT-VALUE}")
+    boolean baseline;
+
+    @Option(names = {"-s", "--slices"}, split = ",", defaultValue = "5ms,20ms", converter = DurationConverter.class,
+            description = "Time slice durations to compare for every scheduler type")
+    List<Integer> slicesNs;
+
+    @Option(names = {"-w", "--workloads"}, split = ",",
+            defaultValue = "SPINNERS,FORK_STORM,LOCK_POOL,PING_PONG,REQUEST_LOOP",
+            description = "Workloads to run, one of: ${COMPLETION-CANDIDATES}")
+    List<Workload> workloads;
+
+    @Option(names = "--threads", defaultValue = "-1",
+            description = "Measured threads per workload, -1 for twice the number of CPUs")
+    int threads;
+
+    @Option(names = "--warmup", defaultValue = "2s", converter = DurationConverter.LongDurationConverter.class,
+            description = "Time that every workload runs before it is measured")
+    long warmupNs;
+
+    @Option(names = "--duration", defaultValue = "10s", converter = DurationConverter.LongDurationConverter.class,
+            description = "Measured time per workload")
+    long durationNs;
+
+    @Option(names = {"-c", "--cores"}, defaultValue = "-1",
+            description = "Number of cores that the schedulers use, -1 for all cores")
+    int cores;
+
+    @Option(names = "--report", description = "Also write the Markdown report to this file")
+    Path reportPath;
+
+    /**
+     * Result of a workload in a configuration
+     *
+     * @param type   null for the kernel's scheduler, the baseline
+     * @param slice  slice length or "-" for the baseline
+     * @param result null if the run failed
+     * @param error  reason of the failure
+     */
+    record Row(SchedulerType type, String slice, Workload workload, WorkloadResult result, String error) {
+
+        boolean isBaseline() {
+            return type == null;
+        }
+    }
+
+    private int threads() {
+        return threads > 0 ? threads : 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    private List<Row> runWorkloads(SchedulerType type, String slice, ManagedScheduler scheduler) {
+        List<Row> rows = new ArrayList<>();
+        for (Workload workload : workloads) {
+            System.out.println("Running " + workload + (type == null ? " on the kernel's scheduler" :
+                    " with " + type + " and slice " + slice));
+            try {
+                var result = workload.run(threads(), warmupNs, durationNs);
+                if (scheduler != null && !scheduler.isSchedulerAttachedProperly()) {
+                    rows.add(new Row(type, slice, workload, null, "scheduler detached"));
+                    // the following workloads would run on the kernel's scheduler
+                    break;
+                }
+                rows.add(new Row(type, slice, workload, result, null));
+            } catch (Exception e) {
+                e.printStackTrace();
+                rows.add(new Row(type, slice, workload, null, String.valueOf(e.getMessage())));
+            }
+        }
+        return rows;
+    }
+
+    /** Run the workloads with a BPF scheduler */
+    private List<Row> runScheduler(SchedulerType type, int sliceNs) {
+        String slice = nanoSecondsToString(sliceNs, 0);
+        try (var scheduler = type.load(null)) {
+            scheduler.setSetting(new BaseScheduler.SchedulerSetting(sliceNs, cores, false, sliceNs, 0, 0, 0, false, false));
+            scheduler.attachScheduler();
+            if (!scheduler.isSchedulerAttachedProperly()) {
+                return workloads.stream().map(w -> new Row(type, slice, w, null, "scheduler not attached")).toList();
+            }
+            return runWorkloads(type, slice, scheduler);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return workloads.stream().map(w -> new Row(type, slice, w, null, String.valueOf(e.getMessage()))).toList();
+        }
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+    private static String latency(WorkloadResult result, long valueNs) {
+        return result.hasLatencies() ? nanoSecondsToString(valueNs, 1) : "-";
+    }
+
+    /** Markdown report with a table per workload, the throughput is relative to the baseline if it was run */
+    String report(List<Row> rows) {
+        var report = new StringBuilder("# Workload benchmark\n\n");
+        report.append("Measured threads: ").append(threads()).append(", warm-up: ")
+                .append(nanoSecondsToString(warmupNs, 0)).append(", duration: ")
+                .append(nanoSecondsToString(durationNs, 0)).append(", CPUs: ")
+                .append(Runtime.getRuntime().availableProcessors()).append(", cores used by the schedulers: ")
+                .append(cores == -1 ? "all" : cores).append("\n");
+        for (Workload workload : workloads) {
+            var baseline = rows.stream().filter(r -> r.workload() == workload && r.isBaseline() && r.result() != null)
+                    .map(Row::result).findFirst().orElse(null);
+            report.append("\n## ").append(workload).append("\n\n").append(workload.description()).append("\n\n");
+            report.append("| Scheduler | Slice | Operations/s | vs. baseline | p50 | p99 | p99.9 | max | Fairness |\n");
+            report.append("|---|---|---:|---:|---:|---:|---:|---:|---:|\n");
+            for (Row row : rows) {
+                if (row.workload() != workload) {
+                    continue;
+                }
+                report.append("| ").append(row.isBaseline() ? "kernel (baseline)" : row.type())
+                        .append(" | ").append(row.slice()).append(" | ");
+                var result = row.result();
+                if (result == null) {
+                    report.append("failed: ").append(row.error()).append(" | | | | | | |\n");
+                    continue;
+                }
+                report.append(format(result.operationsPerSecond())).append(" | ")
+                        .append(baseline == null || baseline.operationsPerSecond() == 0 ? "-" :
+                                format(100 * result.operationsPerSecond() / baseline.operationsPerSecond()) + "%")
+                        .append(" | ").append(latency(result, result.p50Ns()))
+                        .append(" | ").append(latency(result, result.p99Ns()))
+                        .append(" | ").append(latency(result, result.p999Ns()))
+                        .append(" | ").append(latency(result, result.maxNs()))
+                        .append(" | ").append(String.format("%.3f", result.fairness())).append(" |\n");
+            }
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void run() {
+        if (types.stream().anyMatch(type -> !type.isBPF())) {
+            System.err.println("Only BPF schedulers can be compared, use --baseline for the kernel's scheduler");
+            return;
+        }
+        List<Row> rows = new ArrayList<>();
+        if (baseline) {
+            rows.addAll(runWorkloads(null, "-", null));
+        }
+        for (SchedulerType type : types) {
+            for (int sliceNs : slicesNs) {
+                rows.addAll(runScheduler(type, sliceNs));
+            }
+        }
+        String report = report(rows);
+        System.out.println();
+        System.out.println(report);
+        if (reportPath != null) {
+            try {
+                Files.writeString(reportPath, report);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        var cli = new CommandLine(new WorkloadBenchmark());
+        cli.registerConverter(SchedulerType.class, name -> SchedulerType.valueOf(name.toUpperCase()))
+                .registerConverter(Workload.class, name -> Workload.valueOf(name.toUpperCase()))
+                .setUnmatchedArgumentsAllowed(false)
+                .execute(args);
+    }
+}
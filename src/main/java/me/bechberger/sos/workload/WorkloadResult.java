@@ -0,0 +1,31 @@
+package me.bechberger.sos.workload;
+
+/**
+ * Measured result of a {@link Workload}
+ *
+ * @param operationsPerSecond throughput of all measured threads
+ * @param latencyCount        number of recorded latencies, 0 if the workload has no latencies
+ * @param p50Ns               median latency
+ * @param fairness            Jain's fairness index of the operations of the threads, 1 if every thread did the same
+ */
+public record WorkloadResult(Workload workload, long durationNs, long operations, double operationsPerSecond,
+                             long latencyCount, long p50Ns, long p99Ns, long p999Ns, long maxNs, double fairness) {
+
+    static WorkloadResult of(Workload workload, long durationNs, long[] threadOperations,
+                             LatencyRecorder.Latencies latencies) {
+        long operations = 0;
+        double squares = 0;
+        for (long threadOperation : threadOperations) {
+            operations += threadOperation;
+            squares += (double) threadOperation * threadOperation;
+        }
+        double fairness = squares == 0 ? 1 : (double) operations * operations / (threadOperations.length * squares);
+        return new WorkloadResult(workload, durationNs, operations, operations * 1e9 / durationNs,
+                latencies.count(), latencies.percentile(50), latencies.percentile(99),
+                latencies.percentile(99.9), latencies.maxNs(), fairness);
+    }
+
+    public boolean hasLatencies() {
+        return latencyCount > 0;
+    }
+}
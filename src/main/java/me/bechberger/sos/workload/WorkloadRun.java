@@ -0,0 +1,132 @@
+package me.bechberger.sos.workload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single run of a {@link Workload}: starts its threads, lets them warm up, measures and stops them
+ * <p>
+ * The measured threads count their operations and record their latencies in their own {@link Worker},
+ * only while measuring, so the warm-up doesn't count. Background threads only create load.
+ */
+class WorkloadRun {
+
+    /** Longest time that a thread waits for a partner, so that it notices the end of the run */
+    static final long MAX_WAIT_NS = 10_000_000;
+
+    @FunctionalInterface
+    interface Body {
+        void run(Worker worker) throws Exception;
+    }
+
+    /** State of a measured thread */
+    final class Worker {
+        final int index;
+        private long operations = 0;
+        private final LatencyRecorder latencies = new LatencyRecorder();
+
+        private Worker(int index) {
+            this.index = index;
+        }
+
+        boolean isRunning() {
+            return running;
+        }
+
+        /** Count an operation without latency */
+        void operation() {
+            if (measuring) {
+                operations++;
+            }
+        }
+
+        /** Count an operation with its latency */
+        void operation(long latencyNs) {
+            if (measuring) {
+                operations++;
+                latencies.record(latencyNs);
+            }
+        }
+    }
+
+    private final int threads;
+    private final List<Thread> started = new ArrayList<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private volatile boolean running = true;
+    private volatile boolean measuring = false;
+    private volatile Throwable failure;
+
+    /**
+     * @param threads number of threads that the workload should use
+     */
+    WorkloadRun(int threads) {
+        this.threads = threads;
+    }
+
+    int threads() {
+        return threads;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /** Start a measured thread */
+    Worker spawn(String name, Body body) {
+        var worker = new Worker(workers.size());
+        workers.add(worker);
+        start(name + "-" + worker.index, () -> body.run(worker));
+        return worker;
+    }
+
+    /** Start a thread that only creates load */
+    void spawnBackground(String name, Runnable body) {
+        start(name, body::run);
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    private void start(String name, ThrowingRunnable body) {
+        var thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failure = t;
+                running = false;
+            }
+        }, name);
+        thread.setDaemon(true);
+        started.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Warm up, measure and stop the threads
+     *
+     * @return measured result
+     */
+    WorkloadResult execute(Workload workload, long warmupNs, long durationNs) throws Exception {
+        Thread.sleep(warmupNs / 1_000_000);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationNs / 1_000_000);
+        measuring = false;
+        long measuredNs = System.nanoTime() - start;
+        running = false;
+        for (Thread thread : started) {
+            thread.join(1000);
+            if (thread.isAlive()) {
+                thread.interrupt();
+                thread.join(1000);
+            }
+        }
+        if (failure != null) {
+            throw new Exception("Workload " + workload + " failed", failure);
+        }
+        long[] operations = workers.stream().mapToLong(w -> w.operations).toArray();
+        var latencies = LatencyRecorder.combine(workers.stream().map(w -> w.latencies).toList());
+        return WorkloadResult.of(workload, measuredNs, operations, latencies);
+    }
+}
@@ -0,0 +1,46 @@
+package me.bechberger.sos;
+
+import me.bechberger.sos.scheduler.BaseScheduler;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MainTest {
+
+    /** Only for calling the default helpers of the schedulers, it has no maps */
+    private static BaseScheduler helpers() {
+        return (BaseScheduler) Proxy.newProxyInstance(BaseScheduler.class.getClassLoader(),
+                new Class<?>[]{BaseScheduler.class},
+                (proxy, method, args) -> method.isDefault() ? InvocationHandler.invokeDefault(proxy, method, args) : null);
+    }
+
+    private static Main parse(String... args) {
+        var main = new Main();
+        new CommandLine(main).parseArgs(args);
+        return main;
+    }
+
+    @Test
+    public void testDefaultSettingUsesAllCores() {
+        var setting = parse().createSetting();
+        assertEquals(-1, setting.cores());
+        var scheduler = helpers();
+        assertTrue(scheduler.canRunUnconstrainedTasks(setting.cores(), 0));
+        assertTrue(scheduler.canRunUnconstrainedTasks(setting.cores(), 511));
+    }
+
+    @Test
+    public void testCoresReserveTheOtherCpus() {
+        var setting = parse("--cores", "2").createSetting();
+        var scheduler = helpers();
+        assertTrue(scheduler.canRunUnconstrainedTasks(setting.cores(), 0));
+        assertTrue(scheduler.canRunUnconstrainedTasks(setting.cores(), 1));
+        assertFalse(scheduler.canRunUnconstrainedTasks(setting.cores(), 2));
+    }
+}
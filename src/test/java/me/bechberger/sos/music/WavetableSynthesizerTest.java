@@ -0,0 +1,95 @@
+package me.bechberger.sos.music;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WavetableSynthesizerTest {
+
+    /** Frames of 10ms */
+    private static final int FRAMES = 441;
+
+    private static byte[] render(WavetableSynthesizer synthesizer, int frames) {
+        byte[] buffer = new byte[frames * WavetableSynthesizer.FORMAT.getFrameSize()];
+        synthesizer.render(buffer, 0, frames);
+        return buffer;
+    }
+
+    private static long loudness(byte[] buffer) {
+        long sum = 0;
+        for (int i = 0; i < buffer.length; i += 2) {
+            sum += Math.abs((short) ((buffer[i] & 0xff) | (buffer[i + 1] << 8)));
+        }
+        return sum;
+    }
+
+    /** Render until the synthesizer is silent, at most for the given number of seconds */
+    private static boolean decaysToSilence(WavetableSynthesizer synthesizer, int seconds) {
+        for (int i = 0; i < seconds * 100; i++) {
+            if (loudness(render(synthesizer, FRAMES)) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testNoteSoundsUntilReleased() {
+        var synthesizer = new WavetableSynthesizer(4);
+        assertEquals(0, loudness(render(synthesizer, FRAMES)));
+        synthesizer.noteOn(0, 60, 100);
+        assertTrue(loudness(render(synthesizer, FRAMES)) > 0);
+        synthesizer.noteOff(0, 60);
+        assertTrue(decaysToSilence(synthesizer, 1));
+    }
+
+    @Test
+    public void testNoiseDrumSoundsUntilReleased() {
+        var synthesizer = new WavetableSynthesizer(4);
+        // snare drum on the percussion channel
+        synthesizer.noteOn(9, 38, 100);
+        assertTrue(loudness(render(synthesizer, FRAMES)) > 0);
+        synthesizer.noteOff(9, 38);
+        assertTrue(decaysToSilence(synthesizer, 1));
+    }
+
+    @Test
+    public void testExhaustedPoolStealsVoice() {
+        var synthesizer = new WavetableSynthesizer(1);
+        synthesizer.noteOn(0, 60, 100);
+        render(synthesizer, FRAMES);
+        synthesizer.noteOn(0, 72, 100);
+        // the only voice plays the second note now, so releasing the first one doesn't silence it
+        synthesizer.noteOff(0, 60);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(loudness(render(synthesizer, FRAMES)) > 0);
+        }
+        synthesizer.noteOff(0, 72);
+        assertTrue(decaysToSilence(synthesizer, 1));
+    }
+
+    @Test
+    public void testRenderDoesNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var synthesizer = new WavetableSynthesizer(4);
+        byte[] buffer = new byte[FRAMES * WavetableSynthesizer.FORMAT.getFrameSize()];
+        for (int note = 60; note < 64; note++) {
+            synthesizer.noteOn(0, note, 100);
+        }
+        synthesizer.noteOn(9, 36, 100);
+        synthesizer.noteOn(9, 38, 100);
+        // the first rounds include the lazy initialization of the measurement itself
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 100; i++) {
+                synthesizer.render(buffer, 0, FRAMES);
+            }
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+        }
+        assertEquals(0, allocated);
+    }
+}
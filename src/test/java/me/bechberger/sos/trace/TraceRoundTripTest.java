@@ -0,0 +1,117 @@
+package me.bechberger.sos.trace;
+
+import me.bechberger.sos.scheduler.BaseScheduler.TaskStat;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TraceRoundTripTest {
+
+    private static TaskStat stat(String comm, long runtimeNs, long dispatches) {
+        var stat = new TaskStat();
+        stat.comm = comm;
+        stat.runtimeNs = runtimeNs;
+        stat.dispatches = dispatches;
+        return stat;
+    }
+
+    private static void assertStat(TaskStat expected, TaskStat actual) {
+        assertEquals(expected.comm, actual.comm);
+        assertEquals(expected.runtimeNs, actual.runtimeNs);
+        assertEquals(expected.dispatches, actual.dispatches);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testTicksRoundTripOverSegments() throws IOException {
+        Path directory = Files.createTempDirectory("trace");
+        try {
+            Path base = directory.resolve("recording");
+            // a tick of three rows with comms doesn't fit twice into a segment
+            try (var recorder = new TraceRecorder(base, 128, 0)) {
+                for (int tick = 1; tick <= 10; tick++) {
+                    Map<Integer, TaskStat> stats = new LinkedHashMap<>();
+                    stats.put(1, stat("init", tick * 1000L, tick));
+                    stats.put(2, stat("java", tick * 2000L, tick * 2L));
+                    // larger deltas than an int
+                    stats.put(3, stat("busy", tick * 3_000_000_000L, tick * 3_000_000_000L));
+                    stats.put(4, stat("excluded", tick, tick));
+                    recorder.record(tick * 1_000_000L, stats.entrySet(), pid -> pid != 4);
+                }
+            }
+            assertTrue(TraceFormat.segments(base).size() > 1);
+            var reader = new TraceReader(base);
+            for (int tick = 1; tick <= 10; tick++) {
+                var read = reader.next();
+                assertEquals((tick - 1) * 1_000_000L, read.timestampNs());
+                assertEquals(3, read.stats().size());
+                assertStat(stat("init", tick * 1000L, tick), read.stats().get(1));
+                assertStat(stat("java", tick * 2000L, tick * 2L), read.stats().get(2));
+                assertStat(stat("busy", tick * 3_000_000_000L, tick * 3_000_000_000L), read.stats().get(3));
+            }
+            assertNull(reader.next());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testGrowingDropsStalePids() {
+        var table = new PidTable();
+        table.slot(1, 1);
+        for (int pid = 1000; pid < 1600; pid++) {
+            table.slot(pid, pid < 1300 ? 2 : 3);
+        }
+        assertEquals(-1, table.find(1));
+        assertTrue(table.find(1000) >= 0);
+        assertTrue(table.find(1599) >= 0);
+    }
+
+    /** Like {@link #testGrowingDropsStalePids()}, the values of the reader have to start at zero again */
+    @Test
+    public void testDroppedPidIsResetAfterGrowing() throws IOException {
+        Path directory = Files.createTempDirectory("trace");
+        try {
+            Path base = directory.resolve("recording");
+            try (var recorder = new TraceRecorder(base)) {
+                recorder.record(0, Map.of(1, stat("old", 100, 10)).entrySet(), pid -> true);
+                // enough new pids in the next two ticks to grow the pid table, which drops pid 1
+                for (int tick = 1; tick <= 2; tick++) {
+                    Map<Integer, TaskStat> stats = new LinkedHashMap<>();
+                    for (int pid = tick * 1000; pid < tick * 1000 + 300; pid++) {
+                        stats.put(pid, stat("new", pid, 1));
+                    }
+                    recorder.record(tick, stats.entrySet(), pid -> true);
+                }
+                // the pid came back, e.g. reused, with smaller values than before
+                recorder.record(3, Map.of(1, stat("reused", 50, 5)).entrySet(), pid -> true);
+            }
+            var reader = new TraceReader(base);
+            assertStat(stat("old", 100, 10), reader.next().stats().get(1));
+            assertEquals(300, reader.next().stats().size());
+            var third = reader.next();
+            assertEquals(300, third.stats().size());
+            assertStat(stat("new", 2000, 1), third.stats().get(2000));
+            assertStat(stat("reused", 50, 5), reader.next().stats().get(1));
+            assertNull(reader.next());
+        } finally {
+            delete(directory);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+#!/usr/bin/sh
+
+# Compare the schedulers with synthetic workloads, e.g.
+# ./workload-benchmark.sh --types SIMULATED,FIFO,VTIME --slices 1ms,5ms,20ms --report report.md
+sudo -E PATH=$PATH zsh -c "java --enable-native-access=ALL-UNNAMED -cp target/sound-of-scheduling-0.1-SNAPSHOT-jar-with-dependencies.jar me.bechberger.sos.workload.WorkloadBenchmark $*" -- "$@"